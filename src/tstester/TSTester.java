@@ -7,13 +7,17 @@ import tstester.typesystem.*;
 
 public class TSTester
 {
-    public static String grammarPath, rulesPath, outputPath;
+    public static String grammarPath, rulesPath, outputPath, reportPath;
+    public static int beamWidth, parallelThreshold, targetSize, maxDepth, countLimit;
+    public static boolean hashConsing, guided, insetCaching, dependencyPooling;
     public static Grammar grammar = null;
     public static TypeSystem typeSystem = null;
 
     static
     {
-        grammarPath = rulesPath = outputPath = null;
+        grammarPath = rulesPath = outputPath = reportPath = null;
+        beamWidth = parallelThreshold = targetSize = maxDepth = countLimit = -1;
+        hashConsing = guided = insetCaching = dependencyPooling = false;
     }
 
     public static void usage()
@@ -26,6 +30,16 @@ public class TSTester
         System.err.println(
             "TSTester [] " +
             "[-o <output directory>] " +
+            "[-b <beam width>] " +
+            "[-p <parallel threshold>] " +
+            "[-c] " +
+            "[-s <target size>] " +
+            "[-n <count limit>] " +
+            "[-r <coverage report file>] " +
+            "[-g] " +
+            "[-i] " +
+            "[-d] " +
+            "[-m <max depth>] " +
             "<grammar file> <type rules file>"
         );
 
@@ -59,6 +73,84 @@ public class TSTester
                     outputPath = args[i++];
                     break;
 
+                case 'b':
+                    if (i >= n - 1)
+                        usage("missing beam width (value for 'b')");
+
+                    try {
+                        beamWidth = Integer.parseInt(args[++i]);
+                    } catch (NumberFormatException e) {
+                        usage("invalid beam width '%s'", args[i]);
+                    }
+                    break;
+
+                case 'p':
+                    if (i >= n - 1)
+                        usage("missing parallel threshold (value for 'p')");
+
+                    try {
+                        parallelThreshold = Integer.parseInt(args[++i]);
+                    } catch (NumberFormatException e) {
+                        usage("invalid parallel threshold '%s'", args[i]);
+                    }
+                    break;
+
+                case 'c':
+                    hashConsing = true;
+                    break;
+
+                case 'g':
+                    guided = true;
+                    break;
+
+                case 'i':
+                    insetCaching = true;
+                    break;
+
+                case 'd':
+                    dependencyPooling = true;
+                    break;
+
+                case 'r':
+                    if (i >= n - 1)
+                        usage("missing coverage report file (value for 'r')");
+
+                    reportPath = args[++i];
+                    break;
+
+                case 'm':
+                    if (i >= n - 1)
+                        usage("missing max depth (value for 'm')");
+
+                    try {
+                        maxDepth = Integer.parseInt(args[++i]);
+                    } catch (NumberFormatException e) {
+                        usage("invalid max depth '%s'", args[i]);
+                    }
+                    break;
+
+                case 'n':
+                    if (i >= n - 1)
+                        usage("missing count limit (value for 'n')");
+
+                    try {
+                        countLimit = Integer.parseInt(args[++i]);
+                    } catch (NumberFormatException e) {
+                        usage("invalid count limit '%s'", args[i]);
+                    }
+                    break;
+
+                case 's':
+                    if (i >= n - 1)
+                        usage("missing target size (value for 's')");
+
+                    try {
+                        targetSize = Integer.parseInt(args[++i]);
+                    } catch (NumberFormatException e) {
+                        usage("invalid target size '%s'", args[i]);
+                    }
+                    break;
+
                 // ...
 
                 default:
@@ -95,6 +187,15 @@ public class TSTester
                 grammar
             );
 
+            typeSystem.insetCaching = insetCaching;
+            typeSystem.dependencyPooling = dependencyPooling;
+            if (maxDepth >= 0) typeSystem.maxDepth = maxDepth;
+
+            // report rules that can source from themselves, which only
+            // the maximum depth keeps from nesting endlessly
+            for (List<Rule> cycle : typeSystem.graph().cycles())
+                System.err.println("warning: recursive rules " + cycle);
+
         } finally {
             if (in != null) in.close();
         }
@@ -118,6 +219,25 @@ public class TSTester
                     (parser.parse().getPGrammar())
             );
 
+            // negative values leave the grammar's defaults in place
+            if (beamWidth >= 0) grammar.beamWidth = beamWidth;
+            if (parallelThreshold >= 0) grammar.parallelThreshold = parallelThreshold;
+            grammar.hashConsing = hashConsing;
+
+            // the derivation counts were built for the default limit;
+            // build them again right away rather than on the first fill
+            if (countLimit >= 0) {
+                grammar.countLimit = countLimit;
+                grammar.derivations();
+            }
+
+            // report symbols that will never be part of a generated tree
+            for (Symbol sym : grammar.unproductive())
+                System.err.println("warning: unproductive symbol '" + sym + "'");
+
+            for (Symbol sym : grammar.unreachable())
+                System.err.println("warning: unreachable symbol '" + sym + "'");
+
         } finally {
             if (in != null) in.close();
         }
@@ -131,9 +251,10 @@ public class TSTester
 
         // ---
         final Random r = new Random();
-        List<Subtree> s = typeSystem.generate(
-            typeSystem.rules.get(3),
-            new TypeSystem.SourceSelector() {
+        Coverage coverage = new Coverage(grammar);
+        TypeSystem.SourceSelector selector = guided
+            ? new CoverageSourceSelector(coverage, r)
+            : new TypeSystem.SourceSelector() {
                 int k = 5;
 
                 public Source selectVariableSource(Statement stmt, Variable var, List<Source> sources)
@@ -168,15 +289,31 @@ public class TSTester
 
                     return sources.get(0);
                 }
-            }
-        );
+            };
+
+        List<Subtree> s = typeSystem.generate(typeSystem.rules.get(3), selector);
 
         for (Subtree t : s) {
-            grammar.shortFill(t.root);
+            if (targetSize >= 0)
+                grammar.randomFill(t.root, targetSize);
+            else
+                grammar.shortFill(t.root);
+
+            coverage.record(t);
+
             for (String ss : t.root.generate())
                 System.out.print(ss + " ");
             System.out.println();
         }
+
+        if (reportPath != null) {
+            PrintStream out = new PrintStream(new FileOutputStream(reportPath));
+            try {
+                coverage.report(out);
+            } finally {
+                out.close();
+            }
+        }
         // ---
 
         System.exit(0);
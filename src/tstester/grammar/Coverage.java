@@ -0,0 +1,246 @@
+package tstester.grammar;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class Coverage
+{
+    public final Grammar grammar;
+
+    // every edge gets a bit (its index), followed by a bit for every
+    // alternative (offset by the alternative's production base)
+    private final Production[] productions;
+    private final int[] bases;
+    private final int edges, bits;
+
+    // each thread records into its own bitset, so that recording never
+    // contends with other threads; the bitsets are merged when asked for,
+    // which may happen while they are being recorded into, so both lock
+    // the (otherwise uncontended) bitset
+    private final ThreadLocal<BitSet> local;
+    private final Queue<BitSet> recorded;
+
+    public Coverage(Grammar grammar)
+    {
+        this.grammar = grammar;
+
+        List<Production> sorted = new ArrayList<>(grammar.productions.values());
+        Collections.sort(sorted, new Comparator<Production>() {
+            public int compare(Production a, Production b)
+            {
+                return a.id - b.id;
+            }
+        });
+
+        this.productions = sorted.toArray(new Production[0]);
+        this.bases = new int[productions.length];
+
+        int e = 0, a = 0;
+        for (int i = 0; i < productions.length; ++i) {
+            bases[i] = a;
+            a += productions[i].symbols.length;
+
+            for (Edge[] alt : productions[i].symbols)
+                e += alt.length;
+        }
+
+        this.edges = e;
+        this.bits = e + a;
+
+        this.recorded = new ConcurrentLinkedQueue<>();
+        this.local = new ThreadLocal<BitSet>() {
+            protected BitSet initialValue()
+            {
+                BitSet set = new BitSet(bits);
+                recorded.add(set);
+
+                return set;
+            }
+        };
+    }
+
+    public void record(Subtree tree)
+    {
+        if (tree.root != null) record(tree.root);
+    }
+
+    public void record(Node root)
+    {
+        BitSet set = local.get();
+        Deque<Node> pending = new ArrayDeque<>();
+        pending.push(root);
+
+        // walk the tree using an explicit stack, setting the bits
+        // of every edge and alternative along the way
+        synchronized (set) {
+            mark(set, pending);
+        }
+    }
+
+    private void mark(BitSet set, Deque<Node> pending)
+    {
+        while (!pending.isEmpty()) {
+            Node node = pending.pop();
+            if (node == Node.ANY || node instanceof Token) continue;
+
+            Edge first = null;
+            for (Map.Entry<Edge, Node> entry : node) {
+                Edge edge = entry.getKey();
+                if (first == null) first = edge;
+
+                if (edge.index >= 0) set.set(edge.index);
+                pending.push(entry.getValue());
+            }
+
+            // a node without any child node is of an empty alternative
+            // (or of one whose edges are all optional, which cannot be told
+            // apart; only the actually empty ones are counted)
+            if (first != null)
+                setAlternative(set, first.src, first.alt);
+            else if (node.sym instanceof Production)
+                setEmptyAlternatives(set, (Production)(node.sym));
+        }
+    }
+
+    public BitSet covered()
+    {
+        BitSet merged = new BitSet(bits);
+        for (BitSet set : recorded)
+            synchronized (set) {
+                merged.or(set);
+            }
+
+        return merged;
+    }
+
+    public boolean isCovered(Edge edge)
+    {
+        return edge.index >= 0 && covered().get(edge.index);
+    }
+
+    public boolean isCovered(Production production, int alt)
+    {
+        int bit = altBit(production, alt);
+        return bit >= 0 && covered().get(bit);
+    }
+
+    public int uncoveredAlternatives(Production production)
+    {
+        return uncoveredAlternatives(production, covered());
+    }
+
+    public int uncoveredAlternatives(Production production, BitSet covered)
+    {
+        int count = 0;
+
+        for (int i = 0; i < production.symbols.length; ++i) {
+            int bit = altBit(production, i);
+            if (bit >= 0 && production.isProductive(i) && !covered.get(bit))
+                ++count;
+        }
+
+        return count;
+    }
+
+    public int uncoveredEdges(Production production)
+    {
+        return uncoveredEdges(production, covered());
+    }
+
+    public int uncoveredEdges(Production production, BitSet covered)
+    {
+        int count = 0;
+
+        // only the edges of alternatives that can be derived count
+        for (int i = 0; i < production.symbols.length; ++i) {
+            if (!production.isProductive(i)) continue;
+
+            for (Edge edge : production.symbols[i])
+                if (edge.index >= 0 && !covered.get(edge.index))
+                    ++count;
+        }
+
+        return count;
+    }
+
+    public int coveredEdges()
+    {
+        return covered().get(0, edges).cardinality();
+    }
+
+    public int totalEdges()
+    {
+        return edges;
+    }
+
+    public int coveredAlternatives()
+    {
+        return covered().get(edges, bits).cardinality();
+    }
+
+    public int totalAlternatives()
+    {
+        return bits - edges;
+    }
+
+    public List<String> uncovered()
+    {
+        BitSet covered = covered();
+        List<String> found = new ArrayList<>();
+
+        // uncovered alternatives first; then, within covered alternatives,
+        // the (optional or list) edges that were never taken
+        for (Production production : productions) {
+            if (!production.productive || !production.reachable) continue;
+
+            for (int i = 0; i < production.symbols.length; ++i) {
+                if (!production.isProductive(i)) continue;
+
+                if (!covered.get(altBit(production, i))) {
+                    found.add("alternative " + production.name + "[" + i + "]");
+                    continue;
+                }
+
+                for (Edge edge : production.symbols[i])
+                    if (edge.index >= 0 && !covered.get(edge.index))
+                        found.add("edge " + edge + " (" + edge.dst.name + ")");
+            }
+        }
+
+        return found;
+    }
+
+    public void report(PrintStream out)
+    {
+        out.println(
+            "covered " + coveredAlternatives() + "/" + totalAlternatives() +
+            " alternatives, " + coveredEdges() + "/" + totalEdges() + " edges"
+        );
+
+        for (String line : uncovered())
+            out.println("uncovered " + line);
+    }
+
+    private void setAlternative(BitSet set, Production production, int alt)
+    {
+        int bit = altBit(production, alt);
+        if (bit >= 0) set.set(bit);
+    }
+
+    private void setEmptyAlternatives(BitSet set, Production production)
+    {
+        for (int i = 0; i < production.symbols.length; ++i)
+            if (production.symbols[i].length == 0)
+                setAlternative(set, production, i);
+    }
+
+    private int altBit(Production production, int alt)
+    {
+        int p = production.id;
+        if (p < 0 || p >= productions.length || productions[p] != production)
+            return -1;
+
+        return edges + bases[p] + alt;
+    }
+}
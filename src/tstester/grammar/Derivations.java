@@ -0,0 +1,371 @@
+package tstester.grammar;
+
+import java.util.*;
+
+public class Derivations
+{
+    public final Grammar grammar;
+    public final int maxSize;
+
+    // number of derivations of each symbol (by id), for each size up to
+    // maxSize; sizes are in nodes (every node counts, tokens included) so
+    // that the counts are always finite, and counts are kept as logarithms
+    // as they grow exponentially with the size
+    private final double[][] counts;
+
+    // for every production, alternative and edge j, the number of ways the
+    // edges before j can yield a given number of nodes (prefixes), and for
+    // list edges, the number of ways one or more repetitions can (lists)
+    private final double[][][][] prefixes;
+    private final double[][][][] lists;
+    private final Production[] productions;
+
+    // the same tables, summing up the number of tokens over all of those
+    // derivations instead (still as logarithms); divided by the counts, they
+    // give the average length (in tokens) of the derivations of each size
+    private final double[][] tokens;
+    private final double[][][][] prefixTokens;
+    private final double[][][][] listTokens;
+
+    private static final double NONE = Double.NEGATIVE_INFINITY;
+
+    public Derivations(Grammar grammar, int maxSize)
+    {
+        this.grammar = grammar;
+        this.maxSize = maxSize;
+
+        int n = grammar.productions.size() + grammar.terminals.size();
+        this.counts = new double[n][maxSize + 1];
+        this.prefixes = new double[grammar.productions.size()][][][];
+        this.lists = new double[grammar.productions.size()][][][];
+        this.productions = new Production[grammar.productions.size()];
+        this.tokens = new double[n][maxSize + 1];
+        this.prefixTokens = new double[grammar.productions.size()][][][];
+        this.listTokens = new double[grammar.productions.size()][][][];
+
+        for (int s = 0; s < n; ++s) {
+            Arrays.fill(counts[s], NONE);
+            Arrays.fill(tokens[s], NONE);
+        }
+
+        // a terminal is a single node, which is also a single token
+        for (Terminal terminal : grammar.terminals.values())
+            if (terminal.id >= 0 && maxSize >= 1)
+                counts[terminal.id][1] = tokens[terminal.id][1] = 0;
+
+        for (Production production : grammar.productions.values()) {
+            int p = production.id;
+            productions[p] = production;
+            prefixes[p] = new double[production.symbols.length][][];
+            lists[p] = new double[production.symbols.length][][];
+            prefixTokens[p] = new double[production.symbols.length][][];
+            listTokens[p] = new double[production.symbols.length][][];
+
+            for (int i = 0; i < production.symbols.length; ++i) {
+                int edges = production.symbols[i].length;
+                prefixes[p][i] = new double[edges + 1][maxSize + 1];
+                lists[p][i] = new double[edges][];
+                prefixTokens[p][i] = new double[edges + 1][maxSize + 1];
+                listTokens[p][i] = new double[edges][];
+
+                for (int j = 0; j <= edges; ++j) {
+                    Arrays.fill(prefixes[p][i][j], NONE);
+                    Arrays.fill(prefixTokens[p][i][j], NONE);
+                }
+
+                for (int j = 0; j < edges; ++j)
+                    if (production.symbols[i][j].list) {
+                        lists[p][i][j] = new double[maxSize + 1];
+                        listTokens[p][i][j] = new double[maxSize + 1];
+                        Arrays.fill(lists[p][i][j], NONE);
+                        Arrays.fill(listTokens[p][i][j], NONE);
+                    }
+            }
+        }
+
+        // every node counts, so the derivations of a given size only depend
+        // on the counts of smaller sizes; fill in the tables size by size
+        for (int size = 1; size <= maxSize; ++size)
+            for (Production production : grammar.productions.values())
+                count(production, size);
+    }
+
+    public double logCount(Symbol sym, int size)
+    {
+        if (size < 0 || size > maxSize || sym.id < 0) return NONE;
+        return counts[sym.id][size];
+    }
+
+    public double averageTokens(Symbol sym, int size)
+    {
+        // the average length (in tokens) of the derivations of that size;
+        // -1 if there is no such derivation
+        double count = logCount(sym, size);
+        if (count == NONE) return -1;
+
+        return Math.exp(tokens[sym.id][size] - count);
+    }
+
+    public int sizeFor(Symbol sym, int length)
+    {
+        // the smallest size whose derivations are (on average) at least
+        // 'length' tokens long; -1 if no size up to maxSize is big enough
+        for (int size = 1; size <= maxSize; ++size)
+            if (averageTokens(sym, size) >= length) return size;
+
+        return -1;
+    }
+
+    public Node sample(Symbol sym, int size, Random random)
+    {
+        if (logCount(sym, size) == NONE) return null;
+
+        List<Node> created = new ArrayList<>();
+        Deque<Slot> pending = new ArrayDeque<>();
+        Node root = null;
+
+        // build the derivation top-down using an explicit stack; every step
+        // picks among the possible choices in proportion to their counts,
+        // which makes every derivation of the requested size equally likely
+        pending.push(new Slot(null, null, sym, size));
+        while (!pending.isEmpty()) {
+            Slot slot = pending.pop();
+            Symbol cur = slot.sym;
+            int n = slot.size;
+
+            Node node;
+            if (cur instanceof Terminal) {
+                node = grammar.generateToken((Terminal)(cur));
+
+            } else {
+                Production production = (Production)(cur);
+                int p = production.id;
+                node = new Node(production);
+                created.add(node);
+
+                // pick an alternative
+                int alts = production.symbols.length;
+                double[] weights = new double[alts];
+                for (int i = 0; i < alts; ++i)
+                    weights[i] = prefixes[p][i][production.symbols[i].length][n - 1];
+
+                int alt = pick(weights, counts[p][n], random);
+                Edge[] edges = production.symbols[alt];
+
+                // split the remaining nodes between the edges, last to first;
+                // every split scans the sizes left, so a node costs O(size)
+                // per edge (and per list repetition), not O(1)
+                int[] sizes = new int[edges.length];
+                int left = n - 1;
+
+                for (int j = edges.length - 1; j >= 0; --j) {
+                    double[] split = new double[left + 1];
+                    for (int k = 0; k <= left; ++k)
+                        split[k] = prefixes[p][alt][j][left - k] + item(p, alt, j, k);
+
+                    sizes[j] = pick(split, prefixes[p][alt][j + 1][left], random);
+                    left -= sizes[j];
+                }
+
+                for (int j = edges.length - 1; j >= 0; --j) {
+                    if (sizes[j] == 0) continue;
+
+                    if (!edges[j].list) {
+                        pending.push(new Slot(node, edges[j], edges[j].dst, sizes[j]));
+                        continue;
+                    }
+
+                    // split up list edges into repetitions, first to last
+                    List<Integer> repetitions = new ArrayList<>();
+                    double[] list = lists[p][alt][j];
+                    double[] single = counts[edges[j].dst.id];
+
+                    for (int m = sizes[j]; m > 0; ) {
+                        double[] split = new double[m + 1];
+                        split[0] = NONE;
+
+                        for (int s = 1; s <= m; ++s)
+                            split[s] = single[s] + ((s == m) ? 0 : list[m - s]);
+
+                        int s = pick(split, list[m], random);
+                        repetitions.add(s);
+                        m -= s;
+                    }
+
+                    for (int r = repetitions.size() - 1; r >= 0; --r)
+                        pending.push(new Slot(
+                            node, edges[j].shadow(r), edges[j].dst, repetitions.get(r)
+                        ));
+                }
+            }
+
+            if (slot.parent == null) root = node;
+            else slot.parent.put(slot.edge, node);
+        }
+
+        // compute the lengths (in tokens) of the derived nodes, children first
+        for (int i = created.size() - 1; i >= 0; --i) {
+            Node node = created.get(i);
+
+            node.length = 0;
+            for (Node sub : node.values())
+                node.length += sub.length;
+        }
+
+        return root;
+    }
+
+    private static class Slot
+    {
+        public final Node parent;
+        public final Edge edge;
+        public final Symbol sym;
+        public final int size;
+
+        public Slot(Node parent, Edge edge, Symbol sym, int size)
+        {
+            this.parent = parent;
+            this.edge = edge;
+            this.sym = sym;
+            this.size = size;
+        }
+    }
+
+    private void count(Production production, int size)
+    {
+        int p = production.id;
+        int m = size - 1;
+        double total = NONE, length = NONE;
+
+        // the production's node itself takes one node; the rest is
+        // made up of its alternatives' edges
+        for (int i = 0; i < production.symbols.length; ++i) {
+            if (!production.isProductive(i)) continue;
+
+            Edge[] edges = production.symbols[i];
+            double[][] prefix = prefixes[p][i];
+            double[][] prefixLength = prefixTokens[p][i];
+
+            // list repetitions of m nodes, from single repetitions
+            // of s nodes followed by any repetitions of m - s; the tokens
+            // of a combination add up from both parts, each part counting
+            // once for every derivation of the other one
+            for (int j = 0; j < edges.length; ++j) {
+                if (!edges[j].list || m == 0) continue;
+
+                double[] single = counts[edges[j].dst.id];
+                double[] singleLength = tokens[edges[j].dst.id];
+                double[] terms = new double[m], lengths = new double[m];
+
+                for (int s = 1; s <= m; ++s) {
+                    double rest = (s == m) ? 0 : lists[p][i][j][m - s];
+                    double restLength = (s == m) ? NONE : listTokens[p][i][j][m - s];
+
+                    terms[s - 1] = single[s] + rest;
+                    lengths[s - 1] = logSum(singleLength[s] + rest, single[s] + restLength);
+                }
+
+                lists[p][i][j][m] = logSum(terms);
+                listTokens[p][i][j][m] = logSum(lengths);
+            }
+
+            prefix[0][m] = (m == 0) ? 0 : NONE;
+            prefixLength[0][m] = NONE;
+
+            for (int j = 0; j < edges.length; ++j) {
+                double[] terms = new double[m + 1], lengths = new double[m + 1];
+
+                for (int k = 0; k <= m; ++k) {
+                    terms[k] = prefix[j][m - k] + item(p, i, j, k);
+                    lengths[k] = logSum(
+                        prefixLength[j][m - k] + item(p, i, j, k),
+                        prefix[j][m - k] + itemTokens(p, i, j, k)
+                    );
+                }
+
+                prefix[j + 1][m] = logSum(terms);
+                prefixLength[j + 1][m] = logSum(lengths);
+            }
+
+            total = logSum(total, prefix[edges.length][m]);
+            length = logSum(length, prefixLength[edges.length][m]);
+        }
+
+        counts[p][size] = total;
+        tokens[p][size] = length;
+    }
+
+    private double item(int p, int alt, int j, int k)
+    {
+        Edge edge = productions[p].symbols[alt][j];
+
+        // optional edges may also be left out (as zero nodes)
+        if (k == 0) return edge.opt ? 0 : NONE;
+
+        if (edge.dst.id < 0 || !edge.dst.productive || !edge.dst.reachable)
+            return NONE;
+
+        return edge.list ? lists[p][alt][j][k] : counts[edge.dst.id][k];
+    }
+
+    private double itemTokens(int p, int alt, int j, int k)
+    {
+        Edge edge = productions[p].symbols[alt][j];
+
+        // left out optional edges have no tokens at all
+        if (k == 0) return NONE;
+
+        if (edge.dst.id < 0 || !edge.dst.productive || !edge.dst.reachable)
+            return NONE;
+
+        return edge.list ? listTokens[p][alt][j][k] : tokens[edge.dst.id][k];
+    }
+
+    private static int pick(double[] weights, double total, Random random)
+    {
+        // weights and total are logarithms; walk the cumulative sum until it
+        // goes past the random point, falling back on the last possible
+        // choice to make up for rounding errors
+        double r = random.nextDouble();
+        double sum = 0;
+        int last = -1;
+
+        for (int i = 0; i < weights.length; ++i) {
+            if (weights[i] == NONE) continue;
+
+            sum += Math.exp(weights[i] - total);
+            last = i;
+
+            if (r < sum) return i;
+        }
+
+        if (last == -1)
+            throw new RuntimeException("No derivation to pick from");
+
+        return last;
+    }
+
+    private static double logSum(double a, double b)
+    {
+        if (a == NONE) return b;
+        if (b == NONE) return a;
+
+        double max = Math.max(a, b);
+        return max + Math.log(Math.exp(a - max) + Math.exp(b - max));
+    }
+
+    private static double logSum(double[] terms)
+    {
+        double max = NONE;
+        for (double term : terms)
+            if (term > max) max = term;
+
+        if (max == NONE) return NONE;
+
+        double sum = 0;
+        for (double term : terms)
+            if (term != NONE) sum += Math.exp(term - max);
+
+        return max + Math.log(sum);
+    }
+}
@@ -1,5 +1,7 @@
 package tstester.grammar;
 
+import java.util.*;
+
 public class Edge implements Comparable<Edge>
 {
     public final Production src;
@@ -7,6 +9,22 @@ public class Edge implements Comparable<Edge>
     public final int alt, ix, shw;
     public final boolean opt, list;
 
+    // (production id, alt, ix, shw) packed into a single sort key, in the
+    // same order as compareTo goes through them; -1 if the production has
+    // not been numbered yet, or if any of the fields does not fit
+    transient long key;
+    private final int hash;
+
+    // dense index among the grammar's edges (shadows share their root's),
+    // set up by the grammar along with the sort keys; -1 until then
+    public transient int index;
+
+    // shadows of an edge are interned on the edge they were derived from
+    // (the root), by shadow depth, so that repeated list expansion always
+    // yields the same instances
+    private final Edge root;
+    private Edge[] shadows;
+
     public Edge(Production src, Symbol dst, int alt, int ix)
     {
         this(src, dst, alt, ix, 0, false, false);
@@ -26,6 +44,13 @@ public class Edge implements Comparable<Edge>
         this.shw = shw;
         this.opt = opt;
         this.list = list;
+
+        this.root = this;
+        this.shadows = null;
+        this.index = -1;
+
+        this.key = pack();
+        this.hash = hash(this);
     }
 
     public Edge(Edge other)
@@ -39,6 +64,26 @@ public class Edge implements Comparable<Edge>
             other.opt,
             other.list
         );
+
+        this.index = other.index;
+    }
+
+    private Edge(Edge root, int s)
+    {
+        this.src = root.src;
+        this.dst = root.dst;
+        this.alt = root.alt;
+        this.ix = root.ix;
+        this.shw = s;
+        this.opt = root.opt;
+        this.list = root.list;
+
+        this.root = root;
+        this.shadows = null;
+        this.index = root.index;
+
+        this.key = pack();
+        this.hash = hash(this);
     }
 
     public Edge shadow()
@@ -48,22 +93,78 @@ public class Edge implements Comparable<Edge>
 
     public Edge shadow(int s)
     {
-        return new Edge(src, dst, alt, ix, s, opt, list);
+        if (s == root.shw) return root;
+
+        // negative depths are not worth a table slot
+        if (s < 0) return new Edge(root, s);
+
+        // searches expand lists concurrently; the table is guarded by the
+        // root so that every depth gets exactly one instance
+        synchronized (root) {
+            Edge[] table = root.shadows;
+
+            if (table == null || s >= table.length) {
+                int n = Math.max(s + 1, (table == null) ? 4 : 2 * table.length);
+                table = (root.shadows = Arrays.copyOf(
+                    (table == null) ? new Edge[0] : table, n
+                ));
+            }
+
+            if (table[s] == null) table[s] = new Edge(root, s);
+            return table[s];
+        }
+    }
+
+    void rekey()
+    {
+        key = pack();
+    }
+
+    private long pack()
+    {
+        if (
+            src.id < 0 || src.id >= (1 << 22) ||
+            alt < 0 || alt >= (1 << 13) ||
+            ix < 0 || ix >= (1 << 14) ||
+            shw < 0 || shw >= (1 << 14)
+        )
+            return -1;
+
+        return (
+            ((long)(src.id) << 41) |
+            ((long)(alt) << 28) |
+            ((long)(ix) << 14) |
+            (long)(shw)
+        );
     }
 
     public int compareTo(Edge other)
     {
-        if (!src.name.equals(other.src.name))
-            return src.name.compareTo(other.src.name);
+        if (this == other) return 0;
+
+        // productions are numbered in name order, so the sort keys compare
+        // the same way the fields do; distinct productions sharing an id
+        // (copies, or not numbered yet) have to be compared by name
+        if (
+            key >= 0 && other.key >= 0 &&
+            (src == other.src || src.id != other.src.id)
+        ) {
+            if (key != other.key)
+                return (key < other.key) ? -1 : 1;
+
+        } else {
+            if (!src.name.equals(other.src.name))
+                return src.name.compareTo(other.src.name);
 
-        if (alt != other.alt)
-            return alt - other.alt;
+            if (alt != other.alt)
+                return alt - other.alt;
 
-        if (ix != other.ix)
-            return ix - other.ix;
+            if (ix != other.ix)
+                return ix - other.ix;
 
-        if (shw != other.shw)
-            return shw - other.shw;
+            if (shw != other.shw)
+                return shw - other.shw;
+        }
 
         if (!dst.name.equals(other.dst.name))
             return dst.name.compareTo(other.dst.name);
@@ -93,25 +194,43 @@ public class Edge implements Comparable<Edge>
         return new Edge(this);
     }
 
-    public int hashCode()
+    private static int hash(Edge edge)
     {
         return (
-            7 * src.hashCode() +
-            11 * dst.hashCode() +
-            13 * alt +
-            17 * ix +
-            19 * shw +
-            23 * (opt ? 0 : 1) +
-            37 * (list ? 0 : 1)
+            7 * edge.src.hashCode() +
+            11 * edge.dst.hashCode() +
+            13 * edge.alt +
+            17 * edge.ix +
+            19 * edge.shw +
+            23 * (edge.opt ? 0 : 1) +
+            37 * (edge.list ? 0 : 1)
         );
     }
 
+    public int hashCode()
+    {
+        return hash;
+    }
+
     public boolean equals(Object other)
     {
         if (other == null || !getClass().equals(other.getClass()))
             return false;
 
         Edge that = (Edge)(other);
+        if (this == that) return true;
+        if (hash != that.hash) return false;
+
+        // within the same production, the sort keys stand for the
+        // (alt, ix, shw) fields; unkeyed edges compare field by field
+        if (key >= 0 && that.key >= 0 && src == that.src)
+            return (
+                key == that.key &&
+                dst.equals(that.dst) &&
+                opt == that.opt &&
+                list == that.list
+            );
+
         return (
             src.equals(that.src) &&
             dst.equals(that.dst) &&
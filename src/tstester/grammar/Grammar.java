@@ -1,6 +1,7 @@
 package tstester.grammar;
 
 import java.util.*;
+import java.util.concurrent.*;
 import org.sablecc.sablecc.node.*;
 
 public class Grammar
@@ -11,6 +12,23 @@ public class Grammar
     public final Map<String, Terminal> ignored;
     public final List<Symbol> blacklist;
 
+    public int beamWidth;
+    public int parallelThreshold;
+    public boolean hashConsing;
+    public int maxDepth;
+    public Random random;
+    public int countLimit;
+
+    private Symbol[] symbols;
+    private int[][] distances;
+    private Edge[][] nextEdges;
+
+    // interned (shared) nodes generated while hash-consing
+    private final Map<ConsKey, Node> conses;
+
+    // derivation counts for uniform sampling, up to countLimit nodes
+    private Derivations derivations;
+
     // TODO documentation
     // TODO token/prod blacklist feature to avoid generating identifiers
 
@@ -64,6 +82,393 @@ public class Grammar
         }
     }
 
+    private static class Candidate
+    {
+        public final Subtree tree;
+        private final int hash;
+
+        public Candidate(Subtree tree)
+        {
+            this.tree = tree;
+
+            // compute the (structural) hash only once, as it walks the entire tree
+            this.hash = (
+                7 * tree.hashCode() +
+                11 * (tree.lastAdded == null ? 0 : tree.lastAdded.hashCode())
+            );
+        }
+
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        public boolean equals(Object other)
+        {
+            if (other == null || !getClass().equals(other.getClass()))
+                return false;
+
+            Candidate that = (Candidate)(other);
+            return (
+                hash == that.hash &&
+                (tree.lastAdded == null
+                    ? that.tree.lastAdded == null
+                    : tree.lastAdded.equals(that.tree.lastAdded)) &&
+                tree.equals(that.tree)
+            );
+        }
+    }
+
+    private class Expansion extends RecursiveTask<List<Subtree>>
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Subtree> candidates;
+        private final int from, to;
+        private final Node node, prev;
+        private final Set<Symbol> skip;
+
+        public Expansion(
+            List<Subtree> candidates,
+            int from,
+            int to,
+            Node node,
+            Node prev,
+            Set<Symbol> skip
+        )
+        {
+            this.candidates = candidates;
+            this.from = from;
+            this.to = to;
+            this.node = node;
+            this.prev = prev;
+            this.skip = skip;
+        }
+
+        public List<Subtree> compute()
+        {
+            List<Subtree> found = new ArrayList<>();
+
+            // small enough; expand the candidates directly
+            if (parallelThreshold <= 0 || to - from <= parallelThreshold) {
+                for (int i = from; i < to; ++i)
+                    found.addAll(findRightOf(candidates.get(i), node, prev, skip));
+
+                return found;
+            }
+
+            // otherwise split the range in two, and concatenate both halves'
+            // results in order to keep the output deterministic
+            int mid = (from + to) >>> 1;
+            Expansion left = new Expansion(candidates, from, mid, node, prev, skip);
+            Expansion right = new Expansion(candidates, mid, to, node, prev, skip);
+
+            left.fork();
+            List<Subtree> tail = right.compute();
+
+            found.addAll(left.join());
+            found.addAll(tail);
+
+            return found;
+        }
+    }
+
+    private static class PathFrame
+    {
+        public final Production prod;
+        public int alt, ix;
+
+        public PathFrame(Production prod)
+        {
+            this.prod = prod;
+            this.alt = 0;
+            this.ix = -1;
+        }
+
+        public Edge step()
+        {
+            // move on to the next edge, going through
+            // the alternatives (the productive ones) in order
+            for (++ix; alt < prod.symbols.length; ++alt, ix = 0)
+                if (prod.isProductive(alt) && ix < prod.symbols[alt].length)
+                    return prod.symbols[alt][ix];
+
+            return null;
+        }
+    }
+
+    private static class AncestorFrame
+    {
+        public final Symbol base;
+        public final Map<Edge, Ancestor> shortest;
+        public Edge parent;
+        public int ix;
+
+        public AncestorFrame(Symbol base)
+        {
+            this.base = base;
+            this.shortest = new HashMap<>();
+            this.parent = null;
+            this.ix = 0;
+        }
+    }
+
+    private static class DescentFrame
+    {
+        public final Production prod;
+        public final List<Path> paths;
+        public Edge edge;
+        public int alt, ix;
+
+        public DescentFrame(Production prod)
+        {
+            this.prod = prod;
+            this.paths = new ArrayList<>();
+            this.edge = null;
+            this.alt = this.ix = 0;
+        }
+
+        public Edge step(Set<Symbol> skip)
+        {
+            // move on to the next edge; a required (non-skipped) edge
+            // ends the alternative, as nothing after it can be leftmost
+            if (edge != null) {
+                if (edge.opt) ++ix;
+                else { ++alt; ix = 0; }
+            }
+
+            for (edge = null; alt < prod.symbols.length; ++alt, ix = 0) {
+                // alternatives that cannot be derived are not worth exploring
+                if (!prod.isProductive(alt)) continue;
+
+                // only the nodes up to the first required one can be leftmost,
+                // unless that node is skipped
+                Edge[] edges = prod.symbols[alt];
+                int to = skip.isEmpty()
+                    ? Math.min(prod.firstRequired[alt], edges.length - 1)
+                    : edges.length - 1;
+
+                // outright ignore the nodes that are to be skipped (or are
+                // dead, in which case they can only be optional nodes)
+                for (; ix <= to; ++ix)
+                    if (!skip.contains(edges[ix].dst) && !dead(edges[ix].dst))
+                        return (edge = edges[ix]);
+            }
+
+            return null;
+        }
+    }
+
+    private static class RandomSlot
+    {
+        public final Node parent;
+        public final Edge edge;
+        public final Symbol sym;
+        public int budget;
+        public final int depth;
+        public int units;
+
+        public RandomSlot(Node parent, Edge edge, Symbol sym, int budget, int depth)
+        {
+            this.parent = parent;
+            this.edge = edge;
+            this.sym = sym;
+            this.budget = budget;
+            this.depth = depth;
+            this.units = 0;
+        }
+    }
+
+    // hash-consing key; the child nodes of an interned node are interned as
+    // well, so nodes can be compared by identity one level deep
+    private static class ConsKey
+    {
+        public final Node node;
+        private final int hash;
+
+        public ConsKey(Node node)
+        {
+            this.node = node;
+
+            int h = 7 * System.identityHashCode(node.sym);
+            for (Map.Entry<Edge, Node> entry : node)
+                h = 31 * h + (
+                    System.identityHashCode(entry.getKey()) ^
+                    System.identityHashCode(entry.getValue())
+                );
+
+            this.hash = h;
+        }
+
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        public boolean equals(Object other)
+        {
+            if (other == null || !getClass().equals(other.getClass()))
+                return false;
+
+            ConsKey that = (ConsKey)(other);
+            if (
+                hash != that.hash ||
+                node.sym != that.node.sym ||
+                !node.name.equals(that.node.name) ||
+                node.size() != that.node.size()
+            )
+                return false;
+
+            Iterator<Map.Entry<Edge, Node>> iter = that.node.iterator();
+            for (Map.Entry<Edge, Node> entry : node) {
+                Map.Entry<Edge, Node> next = iter.next();
+
+                if (entry.getKey() != next.getKey() || entry.getValue() != next.getValue())
+                    return false;
+            }
+
+            return true;
+        }
+    }
+
+    private static class GenerationFrame
+    {
+        public final Production prod;
+        public Node shortest, node;
+        public Edge edge;
+        public int alt, ix;
+
+        public GenerationFrame(Production prod, Node shortest)
+        {
+            this.prod = prod;
+            this.shortest = shortest;
+            this.node = null;
+            this.edge = null;
+            this.alt = this.ix = 0;
+        }
+
+        public Edge step()
+        {
+            for (edge = null; alt < prod.symbols.length; ++alt, ix = 0) {
+                if (!prod.isProductive(alt)) continue;
+
+                // generate a new candidate node for each alternative
+                if (node == null) {
+                    node = new Node(prod);
+                    node.length = 0;
+                }
+
+                // made up of the alternative's required nodes
+                Edge[] edges = prod.symbols[alt];
+                while (ix < edges.length)
+                    if (!edges[ix++].opt)
+                        return (edge = edges[ix - 1]);
+
+                // once complete, keep the candidate if it is the shortest
+                if (shortest.length > node.length)
+                    shortest = node;
+
+                node = null;
+            }
+
+            return null;
+        }
+    }
+
+    private class PathIterator implements Iterator<Path>
+    {
+        private final Symbol dst;
+        private final Deque<PathFrame> frames;
+        private final Set<Symbol> open;
+        private final Path path;
+        private Path next;
+
+        public PathIterator(Symbol src, Symbol dst)
+        {
+            this.dst = dst;
+            this.frames = new ArrayDeque<>();
+            this.open = new HashSet<>();
+            this.path = new Path();
+            this.next = null;
+
+            // the source is the destination; the empty path is the only path
+            if (src == dst)
+                next = new Path();
+
+            // otherwise start walking down the source, if the destination
+            // can be reached from it at all
+            else if (src instanceof Production && distance(src, dst) > 0) {
+                frames.push(new PathFrame((Production)(src)));
+                open.add(src);
+
+                next = advance();
+            }
+        }
+
+        public boolean hasNext()
+        {
+            return next != null;
+        }
+
+        public Path next()
+        {
+            if (next == null)
+                throw new NoSuchElementException();
+
+            Path found = next;
+            next = advance();
+
+            return found;
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+
+        private Path advance()
+        {
+            while (!frames.isEmpty()) {
+                PathFrame top = frames.peek();
+                Edge edge = top.step();
+
+                // no edges left; leave the production (and the edge leading
+                // to it, unless it is the source itself)
+                if (edge == null) {
+                    frames.pop();
+                    open.remove(top.prod);
+
+                    if (!frames.isEmpty()) path.pop();
+                    continue;
+                }
+
+                if (dead(edge.dst)) continue;
+
+                // the edge leads to the destination; that's a path
+                if (edge.dst == dst) {
+                    Path found = path.clone();
+                    found.push(edge);
+
+                    return found;
+                }
+
+                // otherwise, go down the edge if it isn't already being visited
+                // and if the destination can be reached from there
+                if (
+                    edge.dst instanceof Production &&
+                    !open.contains(edge.dst) &&
+                    distance(edge.dst, dst) > 0
+                ) {
+                    path.push(edge);
+                    open.add(edge.dst);
+                    frames.push(new PathFrame((Production)(edge.dst)));
+                }
+            }
+
+            return null;
+        }
+    }
+
     public Grammar()
     {
         this.root = null;
@@ -71,6 +476,19 @@ public class Grammar
         this.terminals = new HashMap<>();
         this.ignored = new HashMap<>();
         this.blacklist = new ArrayList<>();
+
+        this.beamWidth = 1024;
+        this.parallelThreshold = 64;
+        this.hashConsing = false;
+        this.maxDepth = 256;
+        this.random = new Random();
+        this.countLimit = 64;
+        this.conses = new ConcurrentHashMap<>();
+        this.derivations = null;
+
+        this.symbols = new Symbol[0];
+        this.distances = new int[0][];
+        this.nextEdges = new Edge[0][];
     }
 
     public static Grammar fromSableCCGrammar(AGrammar grammar)
@@ -178,13 +596,63 @@ public class Grammar
         for (Map.Entry<Symbol, List<Edge>> entry : parents.entrySet())
             entry.getKey().parents = entry.getValue().toArray(new Edge[0]);
 
-        // finally, assign the first production as the root node
+        // assign the first production as the root node
         if (!productions.isEmpty())
             g.root = g.productions.get(((AProd)(productions.get(0))).getId().getText());
 
+        // finally, find out which symbols are dead weight
+        g.analyze();
+
         return g;
     }
 
+    public void analyze()
+    {
+        for (Terminal terminal : terminals.values())
+            if (!terminal.regex && terminal.token == null)
+                terminal.token = Token.shared(terminal);
+
+        markProductive();
+        markReachable();
+
+        for (Production production : productions.values())
+            production.computeTables();
+
+        computeFirstSets();
+        computeLengths();
+        computeDistances();
+
+        // derivation counts need the symbol ids from computeDistances
+        derivations = new Derivations(this, countLimit);
+    }
+
+    public List<Symbol> unproductive()
+    {
+        List<Symbol> found = new ArrayList<>();
+
+        for (Production production : productions.values())
+            if (!production.productive)
+                found.add(production);
+
+        return sortByName(found);
+    }
+
+    public List<Symbol> unreachable()
+    {
+        List<Symbol> found = new ArrayList<>();
+
+        // unproductive symbols are left out, as they are already unusable
+        for (Production production : productions.values())
+            if (!production.reachable && production.productive)
+                found.add(production);
+
+        for (Terminal terminal : terminals.values())
+            if (!terminal.reachable)
+                found.add(terminal);
+
+        return sortByName(found);
+    }
+
     public static void depthSort(List<Subtree> trees)
     {
         final Map<Subtree, Integer> depths = new IdentityHashMap<>();
@@ -202,6 +670,52 @@ public class Grammar
         });
     }
 
+    private static List<Subtree> distinct(List<Subtree> trees)
+    {
+        // different ancestor/merge orders often end up building the same
+        // subtree; as two subtrees with the same shape and the same last added
+        // path lead to the same results, only keep the first of each
+        Set<Candidate> seen = new LinkedHashSet<>();
+        for (Subtree tree : trees)
+            seen.add(new Candidate(tree));
+
+        if (seen.size() == trees.size())
+            return trees;
+
+        List<Subtree> unique = new ArrayList<>();
+        for (Candidate candidate : seen)
+            unique.add(candidate.tree);
+
+        return unique;
+    }
+
+    private static List<Subtree> prune(List<Subtree> trees, int width)
+    {
+        final Map<Subtree, Integer> depths = new IdentityHashMap<>();
+        final Map<Subtree, Integer> sizes = new IdentityHashMap<>();
+
+        // precompute the max depth and size of all subtrees
+        for (Subtree tree : trees) {
+            depths.put(tree, tree.depth());
+            sizes.put(tree, tree.size());
+        }
+
+        // sort by depth first, then size; the sort being stable,
+        // the original order is kept between equivalent subtrees
+        List<Subtree> sorted = new ArrayList<>(trees);
+        Collections.sort(sorted, new Comparator<Subtree>() {
+            public int compare(Subtree a, Subtree b)
+            {
+                int c = depths.get(a) - depths.get(b);
+
+                return c != 0 ? c : sizes.get(a) - sizes.get(b);
+            }
+        });
+
+        // and keep only the best ones
+        return new ArrayList<>(sorted.subList(0, width));
+    }
+
     public Symbol getSymbol(String name)
     {
         Symbol sym = productions.get(name);
@@ -209,78 +723,415 @@ public class Grammar
         return sym == null ? terminals.get(name) : sym;
     }
 
-    public List<Path> shallowFind(Symbol src, Symbol dst)
+    public List<Path> shallowFind(Symbol src, Symbol dst)
+    {
+        List<Path> paths = new ArrayList<>();
+
+        for (Path path : paths(src, dst))
+            paths.add(path);
+
+        return paths;
+    }
+
+    public int distance(Symbol src, Symbol dst)
+    {
+        // symbols foreign to the grammar cannot be reached
+        if (!known(src) || !known(dst))
+            return src == dst ? 0 : -1;
+
+        return distances[src.id][dst.id];
+    }
+
+    public Path shortestPath(Symbol src, Symbol dst)
+    {
+        if (distance(src, dst) < 0) return null;
+
+        // follow the first edges of the shortest paths down to the destination
+        Path path = new Path();
+        for (Symbol cur = src; cur != dst; cur = path.last().dst)
+            path.push(nextEdges[cur.id][dst.id]);
+
+        return path;
+    }
+
+    public Iterable<Path> paths(final Symbol src, final Symbol dst)
+    {
+        // lazily enumerate the paths, only going down
+        // edges from which the destination is reachable
+        return new Iterable<Path>() {
+            public Iterator<Path> iterator()
+            {
+                return new PathIterator(src, dst);
+            }
+        };
+    }
+
+    public List<Subtree> locateChain(List<Node> nodes)
+    {
+        return locateChain(nodes, new HashSet<Symbol>());
+    }
+
+    public List<Subtree> locateChain(List<Node> nodes, Symbol root)
+    {
+        return locateChain(nodes, new HashSet<Symbol>(), root);
+    }
+
+    public List<Subtree> locateChain(List<Node> nodes, Set<Symbol> skip)
+    {
+        return locateChain(nodes, skip, null);
+    }
+
+    public List<Subtree> locateChain(List<Node> nodes, Set<Symbol> skip, Symbol root)
+    {
+        if (nodes.isEmpty()) return new ArrayList<>();
+
+        // search with a bounded beam first, widening it only when the search
+        // came up empty (or with none rooted at the requested symbol, if any)
+        // after having discarded candidates along the way
+        List<Subtree> located;
+        int width = beamWidth;
+
+        while ((located = locateChain(nodes, skip, root, width)) == null)
+            width = (width > Integer.MAX_VALUE / 2) ? 0 : width * 2;
+
+        return located;
+    }
+
+    public List<Subtree> locateDisjoint(List<Node> nodes)
+    {
+        // make a set of all distinct symbols in nodes
+        Set<Symbol> alive = new HashSet<>();
+        for (Node node : nodes) alive.add(node.sym);
+
+        // use that set to compute the 'dead' set (the set of symbols that
+        // cannot contain the symbols in nodes), then use that set with
+        // locateChain to locate the disjoint nodes
+        return locateChain(nodes, findDeadSymbols(alive));
+    }
+
+    public int shortFill(Node node)
+    {
+        // fill the nodes in reverse order so that child nodes
+        // are always filled before their parent
+        List<Node> order = fillOrder(node, null);
+
+        for (int i = order.size() - 1; i >= 0; --i)
+            shortFillNode(order.get(i));
+
+        return node.length;
+    }
+
+    public int randomFill(Node node, int targetSize)
+    {
+        List<Integer> depths = new ArrayList<>();
+        List<Node> order = fillOrder(node, depths);
+        List<RandomSlot> holes = new ArrayList<>();
+        int used = 0;
+
+        // find the empty slots to be filled, just like shortFill does; tokens
+        // already in the tree count towards the target size
+        for (int i = 0; i < order.size(); ++i) {
+            Node cur = order.get(i);
+            int depth = depths.get(i);
+
+            if (cur instanceof Token) {
+                ++used;
+
+            } else if (cur.size() != 0) {
+                Edge first = cur.firstKey();
+                for (Edge edge : first.src.symbols[first.alt])
+                    if (cur.get(edge) == null)
+                        holes.add(new RandomSlot(cur, edge, edge.dst, 0, depth + 1));
+
+            // empty nodes get filled in place (there is nothing to move over
+            // from a token, so empty terminal nodes are left alone)
+            } else if (cur.sym instanceof Production) {
+                holes.add(new RandomSlot(cur, null, cur.sym, 0, depth));
+            }
+        }
+
+        // every slot gets at least its minimum length; whatever is left of
+        // the target size gets spread out randomly over the slots
+        for (RandomSlot hole : holes)
+            used = addLengths(used, hole.sym.minLength);
+
+        int extra = (used >= targetSize) ? 0 : targetSize - used;
+        int[] shares = share(extra, holes);
+        Map<Symbol, Node> known = new HashMap<>();
+        Derivations counts = derivations();
+
+        // slots whose share fits within the derivation counts are sampled
+        // uniformly, at the size whose derivations have about that many
+        // tokens; bigger ones fall back on the budgeted random expansion
+        for (int i = 0; i < holes.size(); ++i) {
+            RandomSlot hole = holes.get(i);
+            int budget = addLengths(hole.sym.minLength, shares[i]);
+            int size = counts.sizeFor(hole.sym, budget);
+
+            Node generated = (size >= 0)
+                ? counts.sample(hole.sym, size, random)
+                : randomGenerate(hole.sym, budget, hole.depth, known);
+
+            if (hole.edge != null) {
+                hole.parent.put(hole.edge, generated);
+            } else {
+                for (Map.Entry<Edge, Node> entry : generated)
+                    hole.parent.put(entry.getKey(), entry.getValue());
+            }
+        }
+
+        // finally, compute the lengths of the filled nodes, bottom-up
+        for (int i = order.size() - 1; i >= 0; --i)
+            if (!(order.get(i) instanceof Token))
+                computeLength(order.get(i));
+
+        return node.length;
+    }
+
+    public synchronized Derivations derivations()
+    {
+        // the tables only depend on the grammar (and the size limit); they
+        // are built by analyze, and built again here if the limit changed
+        if (derivations == null || derivations.maxSize != countLimit)
+            derivations = new Derivations(this, countLimit);
+
+        return derivations;
+    }
+
+    public Node uniformGenerate(Symbol sym, int size)
+    {
+        // a derivation of exactly 'size' nodes, picked uniformly among all of
+        // them; null if there is none (or if size is over the count limit)
+        return derivations().sample(sym, size, random);
+    }
+
+    public Node randomGenerate(Symbol sym, int budget)
+    {
+        return randomGenerate(sym, budget, 0, new HashMap<Symbol, Node>());
+    }
+
+    private Node randomGenerate(Symbol sym, int budget, int depth, Map<Symbol, Node> known)
+    {
+        List<Node> created = new ArrayList<>();
+        Deque<RandomSlot> pending = new ArrayDeque<>();
+        Node root = null;
+
+        // expand the nodes top-down using an explicit stack; each node gets
+        // a budget (in tokens) which it splits up between its child nodes
+        pending.push(new RandomSlot(null, null, sym, budget, depth));
+        while (!pending.isEmpty()) {
+            RandomSlot slot = pending.pop();
+            Node node = randomExpand(slot, pending, created, known);
+
+            if (slot.parent == null) root = node;
+            else slot.parent.put(slot.edge, node);
+        }
+
+        // compute the lengths of the expanded nodes, children first
+        for (int i = created.size() - 1; i >= 0; --i)
+            computeLength(created.get(i));
+
+        return root;
+    }
+
+    private Node randomExpand(
+        RandomSlot slot, Deque<RandomSlot> pending, List<Node> created, Map<Symbol, Node> known
+    ) {
+        if (slot.sym instanceof Terminal)
+            return generateToken((Terminal)(slot.sym));
+
+        // out of budget (or too deep, or going around in a unit cycle); the
+        // shortest node will do, which is also what keeps the expansion from
+        // running away; the shortest nodes are memoized, so give the copies
+        // fresh token values
+        if (
+            slot.budget <= slot.sym.minLength ||
+            slot.depth >= maxDepth ||
+            slot.units > productions.size() ||
+            dead(slot.sym)
+        ) {
+            Node shortest = known.get(slot.sym);
+            if (shortest == null)
+                known.put(slot.sym, (shortest = shortGenerate(slot.sym)));
+
+            return freshTokens(shortest.clone());
+        }
+
+        Production prod = (Production)(slot.sym);
+        List<Integer> fitting = new ArrayList<>(), growing = new ArrayList<>();
+
+        // pick an alternative that fits in the budget, preferring the ones
+        // which can grow to make use of the budget
+        for (int i = 0; i < prod.symbols.length; ++i) {
+            if (!prod.isProductive(i) || prod.minLengths[i] > slot.budget)
+                continue;
+
+            fitting.add(i);
+            for (Edge edge : prod.symbols[i])
+                if (!dead(edge.dst) && (edge.list || edge.dst.unbounded)) {
+                    growing.add(i);
+                    break;
+                }
+        }
+
+        List<Integer> choices = growing.isEmpty() ? fitting : growing;
+        int alt = choices.get(random.nextInt(choices.size()));
+        int extra = slot.budget - prod.minLengths[alt];
+
+        // pick the child nodes; optional ones are thrown in as long as the
+        // budget allows (always, if they can make use of it, otherwise at
+        // random), along with a random number of list repetitions
+        List<RandomSlot> items = new ArrayList<>();
+        Node node = new Node(prod);
+        created.add(node);
+
+        for (Edge edge : prod.symbols[alt]) {
+            if (dead(edge.dst)) continue;
+
+            boolean grows = edge.list || edge.dst.unbounded;
+            if (edge.opt) {
+                if (edge.dst.minLength > extra || extra == 0 || (!grows && random.nextBoolean()))
+                    continue;
+
+                extra -= edge.dst.minLength;
+            }
+
+            items.add(new RandomSlot(node, edge, edge.dst, edge.dst.minLength, slot.depth + 1));
+            if (!edge.list) continue;
+
+            // repetitions cost at least a token, so that they always end;
+            // leave some budget for the elements themselves if they can grow
+            int cost = Math.max(1, edge.dst.minLength);
+            int max = edge.dst.unbounded ? extra / (2 * cost) : extra / cost;
+            int count = random.nextInt(max + 1);
+
+            for (int k = 1; k <= count; ++k)
+                items.add(new RandomSlot(node, edge.shadow(k), edge.dst, edge.dst.minLength, slot.depth + 1));
+
+            extra -= count * cost;
+        }
+
+        // spread whatever is left of the budget over the child nodes; a lone
+        // child node gets all of it, so keep track of how many times in a
+        // row that happens (more than there are productions means a cycle)
+        int[] shares = share(extra, items);
+        for (int i = items.size() - 1; i >= 0; --i) {
+            RandomSlot item = items.get(i);
+            item.budget = addLengths(item.budget, shares[i]);
+            item.units = (items.size() == 1) ? slot.units + 1 : 0;
+
+            pending.push(item);
+        }
+
+        return node;
+    }
+
+    private int[] share(int extra, List<RandomSlot> slots)
+    {
+        int[] shares = new int[slots.size()];
+        double[] weights = new double[slots.size()];
+        double total = 0;
+
+        // only slots which can grow are worth giving extra tokens to;
+        // failing that, any production will do
+        for (int pass = 0; pass < 2 && total == 0; ++pass)
+            for (int i = 0; i < slots.size(); ++i) {
+                Symbol sym = slots.get(i).sym;
+
+                if (
+                    sym instanceof Production && !dead(sym) &&
+                    (pass == 1 || sym.unbounded)
+                )
+                    total += (weights[i] = random.nextDouble() + Double.MIN_VALUE);
+            }
+
+        if (extra == 0 || total == 0) return shares;
+
+        // hand out the extra tokens in proportion to the (random) weights,
+        // and give the rounding leftovers to the last weighted slot
+        int given = 0, last = -1;
+        for (int i = 0; i < shares.length; ++i) {
+            if (weights[i] == 0) continue;
+
+            shares[i] = (int)(extra * (weights[i] / total));
+            given += shares[i];
+            last = i;
+        }
+
+        shares[last] += extra - given;
+        return shares;
+    }
+
+    private static int addLengths(int a, int b)
+    {
+        return (a > Integer.MAX_VALUE - b) ? Integer.MAX_VALUE : a + b;
+    }
+
+    private static void computeLength(Node node)
+    {
+        node.length = 0;
+        for (Node sub : node.values()) {
+            if (sub.length == Integer.MAX_VALUE)
+                node.length = Integer.MAX_VALUE;
+
+            else if (node.length != Integer.MAX_VALUE)
+                node.length += sub.length;
+        }
+    }
+
+    private List<Node> fillOrder(Node node, List<Integer> depths)
     {
-        return shallowFind(src, dst, new HashSet<Symbol>(), new HashMap<Symbol, List<Path>>());
-    }
+        // collect the nodes to be filled (the existing ones) in pre-order,
+        // using an explicit stack rather than recursing
+        List<Node> order = new ArrayList<>();
+        Deque<Node> pending = new ArrayDeque<>();
+        Deque<Integer> levels = new ArrayDeque<>();
 
-    public List<Subtree> locateChain(List<Node> nodes)
-    {
-        return locateChain(nodes, new HashSet<Symbol>());
-    }
+        pending.push(node);
+        levels.push(0);
 
-    public List<Subtree> locateChain(List<Node> nodes, Set<Symbol> skip)
-    {
-        List<Subtree> empty = new ArrayList<>();
-        if (nodes.isEmpty()) return empty;
+        while (!pending.isEmpty()) {
+            Node next = pending.pop();
+            int level = levels.pop();
 
-        // start off with only one candidate; a subtree with only the first node
-        List<Subtree> candidates = new ArrayList<>();
-        candidates.add(new Subtree(nodes.get(0)));
+            order.add(next);
+            if (depths != null) depths.add(level);
 
-        // traverse the tree to lookup every node after the first
-        for (int i = 1; i < nodes.size(); ++i) {
-            List<Subtree> found = new ArrayList<>();
+            if (next instanceof Token) continue;
 
-            // for each candidate, find all valid subtrees
-            // containing the next node on the right side
-            for (Subtree candidate : candidates)
-                found.addAll(findRightOf(
-                    candidate,
-                    nodes.get(i),
-                    nodes.get(i - 1),
-                    skip
-                ));
+            // filling modifies the nodes; copy shared nodes before going in
+            List<Map.Entry<Edge, Node>> entries = new ArrayList<>();
+            for (Map.Entry<Edge, Node> entry : next)
+                entries.add(entry);
 
-            // and repeat the process, starting with the found
-            // subtrees for the next node in the chain
-            candidates = found;
-            if (candidates.isEmpty()) return empty;
-        }
+            for (Map.Entry<Edge, Node> entry : entries) {
+                Node sub = entry.getValue();
 
-        return candidates;
-    }
+                if (sub.shared && !(sub instanceof Token))
+                    next.put(entry.getKey(), (sub = sub.unshare()));
 
-    public List<Subtree> locateDisjoint(List<Node> nodes)
-    {
-        // make a set of all distinct symbols in nodes
-        Set<Symbol> alive = new HashSet<>();
-        for (Node node : nodes) alive.add(node.sym);
+                pending.push(sub);
+                levels.push(level + 1);
+            }
+        }
 
-        // use that set to compute the 'dead' set (the set of symbols that
-        // cannot contain the symbols in nodes), then use that set with
-        // locateChain to locate the disjoint nodes
-        return locateChain(nodes, findDeadSymbols(alive));
+        return order;
     }
 
-    public int shortFill(Node node)
+    private void shortFillNode(Node node)
     {
         Map<Symbol, Node> known = new HashMap<>();
 
         // it makes no sense to try and fill a token
+        // (tokens always have a length of 1)
         if (node instanceof Token)
-            return node.length = 1;
+            return;
 
-        // if the node about to be filled already contains child nodes,
-        // recursively fill them, generating new nodes for the empty slots
+        // if the node about to be filled already contains child nodes (which
+        // have been filled already), generate new nodes for the empty slots
+        // using the first child's alternative
         if (node.size() != 0) {
-            // fill out existing slots recursively
-            for (Node sub : node.edges.values())
-                shortFill(sub);
-
-            // and generate new (short) nodes for the missing slots,
-            // using the first child's alternative
-            Edge first = node.edges.firstKey();
+            Edge first = node.firstKey();
             for (Edge edge : first.src.symbols[first.alt])
                 if (node.get(edge) == null)
                     node.put(edge, shortGenerate(edge.dst, known));
@@ -295,66 +1146,335 @@ public class Grammar
         }
 
         // finally, compute the newly filled node's length
-        node.length = 0;
-        for (Node sub : node.edges.values()) {
-            if (sub.length == Integer.MAX_VALUE)
-                node.length = Integer.MAX_VALUE;
+        computeLength(node);
+    }
 
-            else if (node.length != Integer.MAX_VALUE)
-                node.length += sub.length;
+    public Node shortGenerate(Symbol sym)
+    {
+        return shortGenerate(sym, new HashMap<Symbol, Node>());
+    }
+
+    private void markProductive()
+    {
+        Map<Production, int[]> pending = new HashMap<>();
+        Deque<Symbol> queue = new ArrayDeque<>();
+
+        // terminals are trivially productive; productions are not until one
+        // of their alternatives is shown to be, which is tracked by counting
+        // how many required symbols are still pending for each alternative
+        for (Terminal terminal : terminals.values()) {
+            terminal.productive = true;
+            queue.add(terminal);
         }
 
-        return node.length;
+        for (Production production : productions.values()) {
+            int[] counts = new int[production.symbols.length];
+
+            for (int i = 0; i < production.symbols.length; ++i)
+                for (Edge edge : production.symbols[i])
+                    if (!edge.opt) ++counts[i];
+
+            production.productive = false;
+            production.productiveAlts = new boolean[counts.length];
+            pending.put(production, counts);
+
+            // an alternative without required symbols is productive right away
+            for (int i = 0; i < counts.length; ++i) {
+                if (counts[i] != 0) continue;
+
+                production.productiveAlts[i] = true;
+                if (!production.productive) {
+                    production.productive = true;
+                    queue.add(production);
+                }
+            }
+        }
+
+        // propagate productivity up to the parents; once every required
+        // symbol of an alternative is productive, so is the alternative
+        while (!queue.isEmpty()) {
+            Symbol sym = queue.poll();
+
+            for (Edge edge : sym.parents) {
+                if (edge.opt || --pending.get(edge.src)[edge.alt] != 0)
+                    continue;
+
+                edge.src.productiveAlts[edge.alt] = true;
+                if (!edge.src.productive) {
+                    edge.src.productive = true;
+                    queue.add(edge.src);
+                }
+            }
+        }
     }
 
-    public Node shortGenerate(Symbol sym)
+    private void markReachable()
     {
-        return shortGenerate(sym, new HashMap<Symbol, Node>());
+        // without a root, there is no telling what is reachable
+        boolean all = (root == null);
+
+        for (Production production : productions.values())
+            production.reachable = all;
+
+        for (Terminal terminal : terminals.values())
+            terminal.reachable = all;
+
+        if (all) return;
+
+        // walk down from the root, only following symbols found in
+        // alternatives that can actually be derived
+        Deque<Production> queue = new ArrayDeque<>();
+        root.reachable = true;
+        queue.add(root);
+
+        while (!queue.isEmpty()) {
+            Production production = queue.poll();
+
+            for (int i = 0; i < production.symbols.length; ++i) {
+                if (!production.isProductive(i)) continue;
+
+                for (Edge edge : production.symbols[i]) {
+                    if (edge.dst.reachable || !edge.dst.productive) continue;
+
+                    edge.dst.reachable = true;
+                    if (edge.dst instanceof Production)
+                        queue.add((Production)(edge.dst));
+                }
+            }
+        }
     }
 
-    private List<Path> shallowFind(Symbol src, Symbol dst, Set<Symbol> open, Map<Symbol, List<Path>> cache)
+    private void computeFirstSets()
     {
-        List<Path> paths = new ArrayList<>();
+        // a symbol's FIRST set holds every symbol that can be found down its
+        // leftmost side (itself included); terminals only have themselves
+        for (Terminal terminal : terminals.values())
+            terminal.first = Collections.<Symbol>singleton(terminal);
+
+        for (Production production : productions.values()) {
+            production.first = new HashSet<>();
+            production.first.add(production);
+        }
 
-        // check if the source already matches the destination
-        if (src == dst)
-            return single(new Path());
+        // keep merging the sets of the leading symbols of each alternative
+        // (up to the first required one) until nothing changes anymore
+        boolean changed = true;
+        while (changed) {
+            changed = false;
 
-        // if the node is terminal (no children) or is already
-        // being visited, bail out immediately
-        if (src instanceof Terminal || open.contains(src))
-            return paths;
+            for (Production production : productions.values()) {
+                for (int i = 0; i < production.symbols.length; ++i) {
+                    if (!production.isProductive(i)) continue;
 
-        // apply some memoization to avoid re-traversing
-        if (cache.containsKey(src)) {
-            for (Path path : cache.get(src))
-                paths.add(path.clone());
+                    Edge[] alt = production.symbols[i];
+                    int to = Math.min(production.firstRequired[i], alt.length - 1);
+
+                    for (int j = 0; j <= to; ++j)
+                        if (!dead(alt[j].dst) && production.first.addAll(alt[j].dst.first))
+                            changed = true;
+                }
+            }
+        }
+    }
 
-            return paths;
+    private void computeLengths()
+    {
+        // the shortest derivation of each symbol, in tokens; terminals are a
+        // single token, productions start out as unbounded (unproductive)
+        for (Terminal terminal : terminals.values())
+            terminal.minLength = 1;
+
+        for (Production production : productions.values()) {
+            production.minLength = Integer.MAX_VALUE;
+            production.minLengths = new int[production.symbols.length];
+            Arrays.fill(production.minLengths, Integer.MAX_VALUE);
         }
 
-        // mark the node as being under visit
-        Production prod = (Production)(src);
-        open.add(src);
+        // relax the lengths of each alternative until nothing changes anymore
+        boolean changed = true;
+        while (changed) {
+            changed = false;
 
-        // go through every edge and recurse
-        for (int i = 0; i < prod.symbols.length; ++i) {
-            for (int j = 0; j < prod.symbols[i].length; ++j) {
-                Edge next = prod.symbols[i][j];
+            for (Production production : productions.values()) {
+                for (int i = 0; i < production.symbols.length; ++i) {
+                    if (!production.isProductive(i)) continue;
+
+                    int length = 0;
+                    for (Edge edge : production.symbols[i])
+                        if (!edge.opt) length = addLengths(length, edge.dst.minLength);
 
-                // if a path is found, add the current edge to the path(s) found
-                for (Path found : shallowFind(next.dst, dst, open, cache)) {
-                    found.unshift(next);
-                    paths.add(found);
+                    if (length < production.minLengths[i]) {
+                        production.minLengths[i] = length;
+                        changed = true;
+                    }
+
+                    if (length < production.minLength)
+                        production.minLength = length;
                 }
             }
         }
 
-        // finally, unmark and record findings in the memoization cache
-        open.remove(src);
-        cache.put(src, paths);
+        // a production can grow without bounds if it can repeat a list, or
+        // if it can contain itself
+        for (Production production : productions.values()) {
+            Set<Symbol> seen = new HashSet<>();
+            Deque<Production> queue = new ArrayDeque<>();
+            queue.add(production);
 
-        return paths;
+            while (!queue.isEmpty() && !production.unbounded) {
+                Production cur = queue.poll();
+
+                for (int i = 0; i < cur.symbols.length; ++i) {
+                    if (!cur.isProductive(i)) continue;
+
+                    for (Edge edge : cur.symbols[i]) {
+                        if (dead(edge.dst)) continue;
+
+                        if ((cur == production && edge.list) || edge.dst == production)
+                            production.unbounded = true;
+
+                        else if (edge.dst instanceof Production && seen.add(edge.dst))
+                            queue.add((Production)(edge.dst));
+                    }
+                }
+            }
+        }
+
+        // as does any production which can contain an unbounded one
+        changed = true;
+        while (changed) {
+            changed = false;
+
+            for (Production production : productions.values()) {
+                if (production.unbounded) continue;
+
+                for (int i = 0; i < production.symbols.length && !production.unbounded; ++i)
+                    if (production.isProductive(i))
+                        for (Edge edge : production.symbols[i])
+                            if (!dead(edge.dst) && (edge.list || edge.dst.unbounded)) {
+                                production.unbounded = true;
+                                changed = true;
+                                break;
+                            }
+            }
+        }
+    }
+
+    private void computeDistances()
+    {
+        List<Symbol> all = new ArrayList<>();
+
+        // number every symbol; productions first, in name order
+        // (the same order in which edges are compared), then terminals
+        all.addAll(sortByName(new ArrayList<Symbol>(productions.values())));
+        all.addAll(sortByName(new ArrayList<Symbol>(terminals.values())));
+
+        symbols = all.toArray(new Symbol[0]);
+        for (int i = 0; i < symbols.length; ++i)
+            symbols[i].id = i;
+
+        // now that productions have ids, the edges can get their sort keys,
+        // and their indexes (in the same order)
+        int index = 0;
+        for (Symbol sym : symbols) {
+            if (!(sym instanceof Production)) continue;
+
+            for (Edge[] edges : ((Production)(sym)).symbols)
+                for (Edge edge : edges) {
+                    edge.rekey();
+                    edge.index = index++;
+                }
+        }
+
+        int n = symbols.length;
+        distances = new int[n][];
+        nextEdges = new Edge[n][];
+
+        // breadth-first search from every symbol, recording the distance to
+        // every other symbol and the first edge of the shortest path to it
+        Deque<Symbol> queue = new ArrayDeque<>();
+        for (int i = 0; i < n; ++i) {
+            int[] dist = (distances[i] = new int[n]);
+            Edge[] first = (nextEdges[i] = new Edge[n]);
+
+            Arrays.fill(dist, -1);
+            dist[i] = 0;
+            queue.add(symbols[i]);
+
+            while (!queue.isEmpty()) {
+                Symbol cur = queue.poll();
+                if (!(cur instanceof Production)) continue;
+
+                Production prod = (Production)(cur);
+                for (int a = 0; a < prod.symbols.length; ++a) {
+                    if (!prod.isProductive(a)) continue;
+
+                    for (Edge edge : prod.symbols[a]) {
+                        int d = edge.dst.id;
+                        if (dead(edge.dst) || dist[d] != -1) continue;
+
+                        dist[d] = dist[cur.id] + 1;
+                        first[d] = (cur.id == i) ? edge : first[cur.id];
+                        queue.add(edge.dst);
+                    }
+                }
+            }
+        }
+    }
+
+    private boolean known(Symbol sym)
+    {
+        return sym.id >= 0 && sym.id < symbols.length && symbols[sym.id] == sym;
+    }
+
+    private List<Subtree> locateChain(List<Node> nodes, Set<Symbol> skip, Symbol root, int width)
+    {
+        boolean pruned = false;
+
+        // start off with only one candidate; a subtree with only the first node
+        List<Subtree> candidates = new ArrayList<>();
+        candidates.add(new Subtree(nodes.get(0)));
+
+        // traverse the tree to lookup every node after the first
+        for (int i = 1; i < nodes.size(); ++i) {
+            List<Subtree> found;
+
+            // keep only the best candidates (if there are too many) to avoid
+            // having the candidate list blow up on ambiguous grammars
+            if (width > 0 && candidates.size() > width) {
+                candidates = prune(candidates, width);
+                pruned = true;
+            }
+
+            // for each candidate, find all valid subtrees containing the next
+            // node on the right side; as each candidate is independent, large
+            // candidate lists are split up and expanded in parallel
+            Expansion expansion = new Expansion(
+                candidates, 0, candidates.size(),
+                nodes.get(i), nodes.get(i - 1), skip
+            );
+
+            found = (parallelThreshold > 0 && candidates.size() > parallelThreshold)
+                ? ForkJoinPool.commonPool().invoke(expansion)
+                : expansion.compute();
+
+            // and repeat the process, starting with the (distinct) found
+            // subtrees for the next node in the chain; if nothing was found
+            // after pruning, a wider beam might still find something
+            candidates = distinct(found);
+            if (candidates.isEmpty())
+                return pruned ? null : candidates;
+        }
+
+        if (root == null) return candidates;
+
+        // only keep the subtrees rooted at the requested symbol; the ones
+        // that were pruned might have been, so this also calls for a retry
+        List<Subtree> rooted = new ArrayList<>();
+        for (Subtree candidate : candidates)
+            if (candidate.root.sym == root) rooted.add(candidate);
+
+        return (rooted.isEmpty() && pruned) ? null : rooted;
     }
 
     private List<Subtree> findRightOf(Subtree base, Node node, Node prev, Set<Symbol> skip)
@@ -451,64 +1571,102 @@ public class Grammar
         Set<Symbol> open
     )
     {
-        // if the node is the root (no parents), is already being visited or
-        // should be skipped, bail out right away
-        if (base.parents.length == 0 || open.contains(base) || skip.contains(base))
-            return new ArrayList<>();
+        // walk up the parents using an explicit stack rather than recursing,
+        // as deeply nested grammars would otherwise overflow the call stack
+        Deque<AncestorFrame> stack = new ArrayDeque<>();
+        List<Ancestor> found = enterAncestors(base, skip, cache, open, stack);
+
+        while (!stack.isEmpty()) {
+            AncestorFrame top = stack.peek();
+
+            // the ancestors of the current parent were just found;
+            // add the corresponding edge to the parent's ancestors
+            if (found != null) {
+                for (Ancestor ancestor : found) {
+                    // avoid modifying ancestors; it will mess up the caching mechanism
+                    Ancestor cur = ancestor.clone();
+                    cur.push(top.parent);
 
-        // apply some memoization to avoid re-traversing
-        List<Ancestor> cached = cache.get(base);
-        if (cached != null) return cached;
+                    // only add the path to the current ancestor set
+                    // if its shorter than the previous one
+                    Path old = top.shortest.get(cur.first());
+                    if (old == null || cur.size() < old.size())
+                        top.shortest.put(cur.first(), cur);
+                }
 
-        // mark the node as being under visit
-        Map<Edge, Ancestor> shortest = new HashMap<>();
-        open.add(base);
+                found = null;
+            }
 
-        for (Edge parent : base.parents) {
-            Edge[] alternative = parent.src.symbols[parent.alt];
+            // move on to the next parent
+            if (top.ix == top.base.parents.length) {
+                // no parents left; unmark the node, record findings
+                // in the cache and pass on the ancestors found
+                stack.pop();
+                open.remove(top.base);
 
-            // check how many optional/skipped nodes do the parent ends with
-            int t = alternative.length;
-            while (--t >= 0) {
-                Edge edge = alternative[t];
-                if (!edge.opt && !skip.contains(edge.dst))
-                    break;
+                found = new ArrayList<>(top.shortest.values());
+                cache.put(top.base, found);
+                continue;
             }
 
+            Edge parent = top.base.parents[top.ix++];
+
+            // parents that cannot be part of a finished tree are of no use
+            if (dead(parent.src) || !parent.src.isProductive(parent.alt))
+                continue;
+
+            Edge[] alternative = parent.src.symbols[parent.alt];
+
+            // check how many optional/skipped nodes do the parent ends with;
+            // every node after the last required one is optional, so only
+            // skipped nodes need to be looked at from there on
+            int t = parent.src.lastRequired[parent.alt];
+            while (t >= 0 && (alternative[t].opt || skip.contains(alternative[t].dst)))
+                --t;
+
             // if the node is not last in its parent's token list,
             // then the parent is the shortest valid ancestor (1 node)
             if (parent.ix != alternative.length - 1)
-                shortest.put(parent, new Ancestor(
+                top.shortest.put(parent, new Ancestor(
                     single(parent),
                     new Path(),
                     0
                 ));
 
             // if the node is within the last nodes the parent could end up with,
-            // recurse and add the corresponding edge to the parent's ancestors
+            // look up the parent's own ancestors (handled above once found)
             if (parent.ix >= t) {
-                for (Ancestor ancestor : findAncestors(parent.src, skip, cache, open)) {
-                    // avoid modifying ancestors; it will mess up the caching mechanism
-                    Ancestor cur = ancestor.clone();
-                    cur.push(parent);
-
-                    // only add the path to the current ancestor set
-                    // if its shorter than the previous one
-                    Path old = shortest.get(cur.first());
-                    if (old == null || cur.size() < old.size())
-                        shortest.put(cur.first(), cur);
-                }
+                top.parent = parent;
+                found = enterAncestors(parent.src, skip, cache, open, stack);
             }
         }
 
-        // finally, unmark the node, record findings in the cache
-        // and return the ancestors found
-        open.remove(base);
+        return found;
+    }
+
+    private List<Ancestor> enterAncestors(
+        Symbol base,
+        Set<Symbol> skip,
+        Map<Symbol, List<Ancestor>> cache,
+        Set<Symbol> open,
+        Deque<AncestorFrame> stack
+    )
+    {
+        // if the node is the root (no parents), is already being visited or
+        // should be skipped, bail out right away
+        if (base.parents.length == 0 || open.contains(base) || skip.contains(base))
+            return new ArrayList<>();
+
+        // apply some memoization to avoid re-traversing
+        List<Ancestor> cached = cache.get(base);
+        if (cached != null) return cached;
 
-        List<Ancestor> paths = new ArrayList<>(shortest.values());
-        cache.put(base, paths);
+        // otherwise mark the node as being under visit; its ancestors
+        // will be available once its frame is done with
+        stack.push(new AncestorFrame(base));
+        open.add(base);
 
-        return paths;
+        return null;
     }
 
     private Subtree mergeAncestorPath(
@@ -573,8 +1731,9 @@ public class Grammar
         // re-add the source to the tree with the ancestor's path
         if (original) tree = tree.clone();
 
+        // shared leaves have no parent; find the base through the path
         Node child = tree.find(source);
-        Node base = child.parent;
+        Node base = tree.find(source.subPath(0, source.size() - 1));
 
         base.remove(source.last());
         tree.add(Path.combine(destination, ancestor), child);
@@ -655,10 +1814,15 @@ public class Grammar
 
         // otherwise the next node can be any (non-skipped) node following the
         // current one in the parent, up to the first non-optional node
-        for (int i = cur.ix + 1; i < parent.symbols[cur.alt].length; ++i) {
+        // (which can only be looked up when no nodes are skipped)
+        int to = skip.isEmpty()
+            ? parent.nextRequired[cur.alt][cur.ix]
+            : parent.symbols[cur.alt].length - 1;
+
+        for (int i = cur.ix + 1; i <= to && i < parent.symbols[cur.alt].length; ++i) {
             Edge next = parent.get(cur.alt, i);
 
-            if (skip.contains(next.dst)) continue;
+            if (skip.contains(next.dst) || dead(next.dst)) continue;
 
             paths.add(new Path(single(next)));
 
@@ -684,6 +1848,50 @@ public class Grammar
     }
 
     private List<Path> findDescendants(Symbol base, Symbol key, Set<Symbol> skip, Set<Symbol> open)
+    {
+        // walk down the leftmost nodes using an explicit stack rather than
+        // recursing, as deeply nested grammars would otherwise overflow the call stack
+        Deque<DescentFrame> stack = new ArrayDeque<>();
+        List<Path> found = enterDescendants(base, key, skip, open, stack);
+
+        while (!stack.isEmpty()) {
+            DescentFrame top = stack.peek();
+
+            // the descendants of the current node were just found;
+            // prepend the current edge to the path(s) found
+            if (found != null) {
+                for (Path descendant : found) {
+                    descendant.unshift(top.edge);
+                    top.paths.add(descendant);
+                }
+
+                found = null;
+            }
+
+            // try to find the key from the next leftmost node
+            Edge edge = top.step(skip);
+            if (edge != null) {
+                found = enterDescendants(edge.dst, key, skip, open, stack);
+                continue;
+            }
+
+            // no nodes left; unmark and pass on the descendants found
+            stack.pop();
+            open.remove(top.prod);
+
+            found = top.paths;
+        }
+
+        return found;
+    }
+
+    private List<Path> enterDescendants(
+        Symbol base,
+        Symbol key,
+        Set<Symbol> skip,
+        Set<Symbol> open,
+        Deque<DescentFrame> stack
+    )
     {
         // if the node is to be skipped, bail out right away
         if (skip.contains(base))
@@ -698,32 +1906,17 @@ public class Grammar
         if (base instanceof Terminal || open.contains(base))
             return new ArrayList<>();
 
-        // mark the node as being under visit
-        List<Path> paths = new ArrayList<>();
-        Production prod = (Production)(base);
-        open.add(base);
-
-        for (Edge[] alternative : prod.symbols) {
-            for (Edge edge : alternative) {
-                // outright ignore the node if it is to be skipped
-                if (skip.contains(edge.dst)) continue;
-
-                // recursively try to find the key from the leftmost node, prepending
-                // the current edge to the path(s) found
-                for (Path descendant : findDescendants(edge.dst, key, open)) {
-                    descendant.unshift(edge);
-                    paths.add(descendant);
-                }
+        // when nothing is skipped, the FIRST set tells right away
+        // if the key can be found down the node's leftmost side at all
+        if (skip.isEmpty() && !base.first.contains(key))
+            return new ArrayList<>();
 
-                // stopping at the first non-optional node, as in no case would the
-                // next node be leftmost then
-                if (!edge.opt) break;
-            }
-        }
+        // otherwise mark the node as being under visit; its descendants
+        // will be available once its frame is done with
+        stack.push(new DescentFrame((Production)(base)));
+        open.add(base);
 
-        // finally, unmark and return the descendants found
-        open.remove(base);
-        return paths;
+        return null;
     }
 
     private Set<Symbol> findDeadSymbols(Set<Symbol> base)
@@ -746,19 +1939,66 @@ public class Grammar
 
     private void collectLiveSymbols(Symbol base, Set<Symbol> alive)
     {
-        // if the node is already marked as alive,
-        // there is no other live nodes to collect behind it
-        if (alive.contains(base)) return;
+        Deque<Symbol> pending = new ArrayDeque<>();
+        pending.push(base);
 
-        // the current node is obviously alive
-        alive.add(base);
+        while (!pending.isEmpty()) {
+            Symbol sym = pending.pop();
 
-        // recursively mark the current node's parents as alive as well
-        for (Edge edge : base.parents)
-            collectLiveSymbols(edge.src, alive);
+            // if the node is already marked as alive,
+            // there is no other live nodes to collect behind it
+            if (!alive.add(sym)) continue;
+
+            // otherwise, mark the current node's parents as alive as well
+            for (Edge edge : sym.parents)
+                pending.push(edge.src);
+        }
     }
 
     private Node shortGenerate(Symbol sym, Map<Symbol, Node> known)
+    {
+        // generate child nodes using an explicit stack rather than recursing,
+        // as deeply nested grammars would otherwise overflow the call stack
+        Deque<GenerationFrame> stack = new ArrayDeque<>();
+        Node sub = enterGeneration(sym, known, stack);
+
+        while (!stack.isEmpty()) {
+            GenerationFrame top = stack.peek();
+
+            // a child node was just generated; add it to the candidate node
+            // and compute the candidate node's length accordingly
+            if (sub != null) {
+                top.node.put(top.edge, sub);
+
+                if (sub.length == Integer.MAX_VALUE)
+                    top.node.length = Integer.MAX_VALUE;
+
+                else if (top.node.length != Integer.MAX_VALUE)
+                    top.node.length += sub.length;
+
+                sub = null;
+            }
+
+            // generate the next child node of the candidate
+            Edge edge = top.step();
+            if (edge != null) {
+                sub = enterGeneration(edge.dst, known, stack);
+                continue;
+            }
+
+            // every alternative was tried out; save the shortest
+            // in the memoization cache and pass it on
+            stack.pop();
+            if (hashConsing) top.shortest = intern(top.shortest);
+            known.put(top.prod, top.shortest);
+
+            sub = top.shortest;
+        }
+
+        return sub;
+    }
+
+    private Node enterGeneration(Symbol sym, Map<Symbol, Node> known, Deque<GenerationFrame> stack)
     {
         // apply some memoization to avoid regenerating a node
         Node shortest;
@@ -774,46 +2014,106 @@ public class Grammar
             shortest.length = Integer.MAX_VALUE;
             known.put(sym, shortest);
 
+            // unproductive productions never end; don't bother exploring them
             Production prod = (Production)(sym);
-            for (Edge[] alt : prod.symbols) {
-                // generate a new candidate node for each alternative
-                Node node = new Node(sym);
-                node.length = 0;
+            if (!prod.productive) return shortest;
+
+            // the shortest node will be available once its frame is done with
+            stack.push(new GenerationFrame(prod, shortest));
+            return null;
+        }
+
+        // otherwise the template is of a terminal; generate the
+        // corresponding Token from the terminal's value
+        shortest = generateToken((Terminal)(sym));
 
-                for (Edge edge : alt) {
-                    if (edge.opt) continue;
+        // save the freshly generated node in the memoization cache
+        known.put(sym, shortest);
+        return shortest;
+    }
 
-                    // generate each child (sub) node recursively
-                    Node sub = shortGenerate(edge.dst, known);
-                    node.put(edge, sub);
+    Token generateToken(Terminal terminal)
+    {
+        // fixed-string terminals all share the same (immutable) token
+        Token token;
+        if (terminal.regex)
+            token = new Token(terminal, Regexp.generateString(terminal.value));
+        else if (terminal.token != null)
+            token = terminal.token;
+        else
+            token = new Token(terminal, terminal.value);
+
+        // regex tokens stay private: interning the nodes above them would
+        // keep every generated string alive in the hash-consing table
+        if (hashConsing && !terminal.regex) token.share();
+        return token;
+    }
 
-                    // and compute the candidate node's length after the
-                    // generation of each child node
-                    if (sub.length == Integer.MAX_VALUE)
-                        node.length = Integer.MAX_VALUE;
+    private Node freshTokens(Node node)
+    {
+        if (node instanceof Token)
+            return ((Terminal)(node.sym)).regex ? generateToken((Terminal)(node.sym)) : node;
 
-                    else if (node.length != Integer.MAX_VALUE)
-                        node.length += sub.length;
-                }
+        // regenerate the values of the regex tokens in a copied node
+        // (shared nodes are left as they are, tokens included)
+        Deque<Node> pending = new ArrayDeque<>();
+        pending.push(node);
 
-                if (shortest.length > node.length)
-                    shortest = node;
-            }
+        while (!pending.isEmpty()) {
+            Node cur = pending.pop();
+            if (cur.shared) continue;
 
-        // otherwise the template is of a terminal, and generate
-        // the corresponding Token from the terminal's value
-        } else {
-            Terminal terminal = (Terminal)(sym);
-            String value = terminal.regex
-                ? Regexp.generateString(terminal.value)
-                : terminal.value;
+            List<Map.Entry<Edge, Node>> entries = new ArrayList<>();
+            for (Map.Entry<Edge, Node> entry : cur)
+                entries.add(entry);
 
-            shortest = new Token(terminal, value);
+            for (Map.Entry<Edge, Node> entry : entries) {
+                Node sub = entry.getValue();
+
+                if (!(sub instanceof Token))
+                    pending.push(sub);
+                else if (((Terminal)(sub.sym)).regex && !sub.shared)
+                    cur.put(entry.getKey(), generateToken((Terminal)(sub.sym)));
+            }
         }
 
-        // save the freshly generated node in the memoization cache
-        known.put(shortest.sym, shortest);
-        return shortest;
+        return node;
+    }
+
+    private Node intern(Node node)
+    {
+        // only complete nodes made up of shared nodes can be shared in turn;
+        // as regex tokens are never shared, the table only ever holds
+        // subtrees of fixed-string tokens and stays bounded by the grammar
+        if (node.shared || node.length == Integer.MAX_VALUE)
+            return node;
+
+        for (Node sub : node.values())
+            if (!sub.shared) return node;
+
+        // mark the node as shared before publishing it, so that other
+        // threads never see it as modifiable
+        node.share();
+
+        Node existing = conses.putIfAbsent(new ConsKey(node), node);
+        return (existing == null) ? node : existing;
+    }
+
+    private static boolean dead(Symbol sym)
+    {
+        return !sym.productive || !sym.reachable;
+    }
+
+    private static List<Symbol> sortByName(List<Symbol> symbols)
+    {
+        Collections.sort(symbols, new Comparator<Symbol>() {
+            public int compare(Symbol a, Symbol b)
+            {
+                return a.name.compareTo(b.name);
+            }
+        });
+
+        return symbols;
     }
 
     private static <T> List<T> single(T item)
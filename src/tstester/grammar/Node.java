@@ -7,12 +7,27 @@ public class Node implements Iterable<Map.Entry<Edge, Node>>
     public static final Node ANY;
 
     public final String name;
-    public final NavigableMap<Edge, Node> edges;
     public Node parent;
     public Symbol sym;
 
+    // shared nodes (see Token.shared and Grammar.hashConsing) are immutable
+    // and may appear in any number of trees at once; they are never copied
+    // and never get their parent set
+    public boolean shared;
+
     public transient int length;
 
+    // child nodes are kept in an array indexed by Edge.ix, for the edges of
+    // the alternative the node was first given a child from (its owner);
+    // shadowed (list) edges, or edges from any other alternative, go to a
+    // sorted overflow map, allocated only when needed
+    private Production src;
+    private int alt;
+    private Edge[] keys;
+    private Node[] slots;
+    private int count;
+    private TreeMap<Edge, Node> overflow;
+
     static
     {
         ANY = new Node();
@@ -21,9 +36,9 @@ public class Node implements Iterable<Map.Entry<Edge, Node>>
     private Node()
     {
         this.name = null;
-        this.edges = null;
         this.parent = null;
         this.sym = null;
+        this.shared = false;
 
         this.length = 0;
     }
@@ -31,9 +46,19 @@ public class Node implements Iterable<Map.Entry<Edge, Node>>
     public Node(String name)
     {
         this.name = name;
-        this.edges = new TreeMap<>();
         this.parent = null;
         this.sym = null;
+        this.shared = false;
+
+        this.length = 0;
+    }
+
+    protected Node(Symbol sym, boolean shared)
+    {
+        this.name = sym.name;
+        this.parent = null;
+        this.sym = sym;
+        this.shared = shared;
 
         this.length = 0;
     }
@@ -69,27 +94,71 @@ public class Node implements Iterable<Map.Entry<Edge, Node>>
     }
 
     public Node(Node other)
+    {
+        this(other, false);
+
+        // copy the child nodes using an explicit stack rather than recursing,
+        // as deep trees would otherwise overflow the call stack
+        Deque<Node[]> pending = new ArrayDeque<>();
+        pending.push(new Node[] { this, other });
+
+        while (!pending.isEmpty()) {
+            Node[] pair = pending.pop();
+
+            for (Map.Entry<Edge, Node> entry : pair[1]) {
+                Node child = entry.getValue();
+
+                // blanks are placeholders and shared nodes are immutable;
+                // there is nothing to copy
+                if (child == Node.ANY || child.shared) {
+                    pair[0].put(entry.getKey(), child);
+                    continue;
+                }
+
+                Node copy = child.shallowClone();
+                pair[0].put(entry.getKey(), copy);
+
+                pending.push(new Node[] { copy, child });
+            }
+        }
+    }
+
+    protected Node(Node other, boolean deep)
     {
         this.name = other.name;
-        this.edges = new TreeMap<>();
         this.parent = other.parent;
         this.sym = other.sym;
+        this.shared = false;
 
         this.length = other.length;
 
-        for (Map.Entry<Edge, Node> entry : other.edges.entrySet())
-            put(entry.getKey(), entry.getValue().clone());
+        if (deep)
+            for (Map.Entry<Edge, Node> entry : other)
+                put(entry.getKey(), entry.getValue().clone());
     }
 
     public List<String> generate()
     {
         List<String> values = new LinkedList<>();
 
-        for (Node node : edges.values()) {
+        // walk the tree left to right using an explicit stack
+        Deque<Node> pending = new ArrayDeque<>();
+        pending.push(this);
+
+        while (!pending.isEmpty()) {
+            Node node = pending.pop();
+
             if (node == Node.ANY)
                 throw new RuntimeException("Missing syntax node element");
 
-            values.addAll(node.generate());
+            if (node instanceof Token) {
+                values.add(((Token)(node)).value);
+                continue;
+            }
+
+            List<Node> subs = new ArrayList<>(node.values());
+            for (int i = subs.size() - 1; i >= 0; --i)
+                pending.push(subs.get(i));
         }
 
         return values;
@@ -97,12 +166,16 @@ public class Node implements Iterable<Map.Entry<Edge, Node>>
 
     public Node get(Edge edge)
     {
-        return edges.get(edge);
+        int i = slot(edge);
+        if (i >= 0 && keys[i] != null && same(keys[i], edge))
+            return slots[i];
+
+        return (overflow == null) ? null : overflow.get(edge);
     }
 
     public Edge getKey(Node node)
     {
-        for (Map.Entry<Edge, Node> entry : edges.entrySet())
+        for (Map.Entry<Edge, Node> entry : this)
             if (node == entry.getValue())
                 return entry.getKey();
 
@@ -111,18 +184,61 @@ public class Node implements Iterable<Map.Entry<Edge, Node>>
 
     public void put(Edge edge, Node node)
     {
+        if (shared)
+            throw new RuntimeException("Cannot modify shared node " + name);
+
         if (sym == null) sym = edge.src;
 
-        edges.put(edge, node);
+        // an empty array can be handed over to a new owner, as long as none
+        // of the overflow edges would belong to it
+        if (count == 0 && edge.shw == 0 && !owns(edge) && !overflows(edge)) {
+            src = edge.src;
+            alt = edge.alt;
+
+            int n = Math.max(edge.ix + 1, src.symbols[alt].length);
+            if (keys == null || keys.length < n) {
+                keys = new Edge[n];
+                slots = new Node[n];
+            }
+        }
+
+        int i = slot(edge);
+        if (i >= 0 && (keys[i] == null || same(keys[i], edge))) {
+            if (keys[i] == null) {
+                keys[i] = edge;
+                ++count;
+            }
+
+            slots[i] = node;
 
-        if (node != Node.ANY) node.parent = this;
+        } else {
+            if (overflow == null) overflow = new TreeMap<>();
+            overflow.put(edge, node);
+        }
+
+        if (node != Node.ANY && !node.shared) node.parent = this;
     }
 
     public Node remove(Edge edge)
     {
-        Node node = edges.remove(edge);
+        if (shared)
+            throw new RuntimeException("Cannot modify shared node " + name);
+
+        Node node = null;
+
+        int i = slot(edge);
+        if (i >= 0 && keys[i] != null && same(keys[i], edge)) {
+            node = slots[i];
+
+            keys[i] = null;
+            slots[i] = null;
+            --count;
+
+        } else if (overflow != null) {
+            node = overflow.remove(edge);
+        }
 
-        if (node != null && node != Node.ANY)
+        if (node != null && node != Node.ANY && !node.shared)
             node.parent = null;
 
         return node;
@@ -135,12 +251,91 @@ public class Node implements Iterable<Map.Entry<Edge, Node>>
 
     public int size()
     {
-        return edges.size();
+        return count + (overflow == null ? 0 : overflow.size());
+    }
+
+    public Edge firstKey()
+    {
+        Iterator<Map.Entry<Edge, Node>> iter = iterator();
+        if (!iter.hasNext())
+            throw new NoSuchElementException();
+
+        return iter.next().getKey();
+    }
+
+    public Collection<Node> values()
+    {
+        return new AbstractCollection<Node>() {
+            public Iterator<Node> iterator()
+            {
+                final Iterator<Map.Entry<Edge, Node>> iter = Node.this.iterator();
+
+                return new Iterator<Node>() {
+                    public boolean hasNext()
+                    {
+                        return iter.hasNext();
+                    }
+
+                    public Node next()
+                    {
+                        return iter.next().getValue();
+                    }
+
+                    public void remove()
+                    {
+                        throw new UnsupportedOperationException();
+                    }
+                };
+            }
+
+            public int size()
+            {
+                return Node.this.size();
+            }
+        };
     }
 
     public Iterator<Map.Entry<Edge, Node>> iterator()
     {
-        return edges.entrySet().iterator();
+        return new EntryIterator();
+    }
+
+    // whether the edge belongs to the alternative owning the array; this
+    // goes by name (as Edge.compareTo does) so that edges comparing equal
+    // always end up in the same place
+    private boolean owns(Edge edge)
+    {
+        return (
+            src != null &&
+            edge.alt == alt &&
+            (edge.src == src || edge.src.name.equals(src.name))
+        );
+    }
+
+    private boolean overflows(Edge edge)
+    {
+        if (overflow != null)
+            for (Edge key : overflow.keySet())
+                if (
+                    key.shw == 0 && key.alt == edge.alt &&
+                    key.src.name.equals(edge.src.name)
+                )
+                    return true;
+
+        return false;
+    }
+
+    private int slot(Edge edge)
+    {
+        if (keys == null || edge.shw != 0 || edge.ix >= keys.length || !owns(edge))
+            return -1;
+
+        return edge.ix;
+    }
+
+    private static boolean same(Edge a, Edge b)
+    {
+        return a == b || a.equals(b) || a.compareTo(b) == 0;
     }
 
     public String toString()
@@ -150,14 +345,68 @@ public class Node implements Iterable<Map.Entry<Edge, Node>>
 
     public Node clone()
     {
-        return new Node(this);
+        return shared ? this : new Node(this);
+    }
+
+    // marks the node as shared; its child nodes should be shared already
+    public Node share()
+    {
+        shared = true;
+        parent = null;
+
+        return this;
+    }
+
+    // copy-on-write; returns a modifiable copy of a shared node, which
+    // keeps referencing the same (shared) child nodes
+    public Node unshare()
+    {
+        if (!shared) return this;
+
+        Node copy = shallowClone();
+        for (Map.Entry<Edge, Node> entry : this)
+            copy.put(entry.getKey(), entry.getValue());
+
+        return copy;
+    }
+
+    protected Node shallowClone()
+    {
+        return new Node(this, false);
     }
 
     public int hashCode()
+    {
+        Deque<HashFrame> stack = new ArrayDeque<>();
+        stack.push(new HashFrame(this));
+
+        // compute the hash codes bottom-up using an explicit stack rather than
+        // recursing, as deep trees would otherwise overflow the call stack;
+        // edges are hashed just like map entries (key ^ value)
+        while (true) {
+            HashFrame top = stack.peek();
+
+            if (top.iter.hasNext()) {
+                Map.Entry<Edge, Node> entry = top.iter.next();
+
+                top.edge = entry.getKey();
+                stack.push(new HashFrame(entry.getValue()));
+                continue;
+            }
+
+            stack.pop();
+            int hash = (top.node == Node.ANY) ? 0 : top.node.hashCode(top.sum);
+
+            if (stack.isEmpty()) return hash;
+            stack.peek().sum += stack.peek().edge.hashCode() ^ hash;
+        }
+    }
+
+    protected int hashCode(int edgesHash)
     {
         return (
             7 * name.hashCode() +
-            11 * edges.hashCode() +
+            11 * edgesHash +
             17 * (sym == null ? 0 : sym.hashCode())
         );
     }
@@ -167,11 +416,113 @@ public class Node implements Iterable<Map.Entry<Edge, Node>>
         if (other == null || !getClass().equals(other.getClass()))
             return false;
 
-        Node that = (Node)(other);
+        // compare both trees side by side using an explicit stack
+        Deque<Node[]> pending = new ArrayDeque<>();
+        pending.push(new Node[] { this, (Node)(other) });
+
+        while (!pending.isEmpty()) {
+            Node[] pair = pending.pop();
+            Node a = pair[0], b = pair[1];
+
+            if (a == b) continue;
+
+            if (
+                a == Node.ANY || b == Node.ANY ||
+                !a.getClass().equals(b.getClass()) ||
+                !a.equalsNode(b) ||
+                a.size() != b.size()
+            )
+                return false;
+
+            // both nodes' edges are sorted the same way; compare them in order
+            Iterator<Map.Entry<Edge, Node>> iter = b.iterator();
+            for (Map.Entry<Edge, Node> entry : a) {
+                Map.Entry<Edge, Node> that = iter.next();
+
+                if (!entry.getKey().equals(that.getKey()))
+                    return false;
+
+                pending.push(new Node[] { entry.getValue(), that.getValue() });
+            }
+        }
+
+        return true;
+    }
+
+    protected boolean equalsNode(Node that)
+    {
         return (
             name.equals(that.name) &&
-            edges.equals(that.edges) &&
             (sym == null ? that.sym == null : sym.equals(that.sym))
         );
     }
+
+    // walks the array and the overflow map side by side, in Edge order
+    private class EntryIterator implements Iterator<Map.Entry<Edge, Node>>
+    {
+        private int i;
+        private final Iterator<Map.Entry<Edge, Node>> rest;
+        private Map.Entry<Edge, Node> peek;
+
+        public EntryIterator()
+        {
+            this.i = advance(0);
+            this.rest = (overflow == null) ? null : overflow.entrySet().iterator();
+            this.peek = (rest != null && rest.hasNext()) ? rest.next() : null;
+        }
+
+        private int advance(int from)
+        {
+            if (keys == null) return 0;
+
+            while (from < keys.length && keys[from] == null) ++from;
+            return from;
+        }
+
+        public boolean hasNext()
+        {
+            return (keys != null && i < keys.length) || peek != null;
+        }
+
+        public Map.Entry<Edge, Node> next()
+        {
+            boolean array = keys != null && i < keys.length;
+
+            if (!array && peek == null)
+                throw new NoSuchElementException();
+
+            if (array && (peek == null || keys[i].compareTo(peek.getKey()) < 0)) {
+                Map.Entry<Edge, Node> entry =
+                    new AbstractMap.SimpleImmutableEntry<>(keys[i], slots[i]);
+
+                i = advance(i + 1);
+                return entry;
+            }
+
+            Map.Entry<Edge, Node> entry = peek;
+            peek = rest.hasNext() ? rest.next() : null;
+            return entry;
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private static class HashFrame
+    {
+        public final Node node;
+        public final Iterator<Map.Entry<Edge, Node>> iter;
+        public Edge edge;
+        public int sum;
+
+        public HashFrame(Node node)
+        {
+            this.node = node;
+            this.iter = node.iterator();
+            this.edge = null;
+            this.sum = 0;
+        }
+    }
 }
@@ -6,6 +6,15 @@ public class Production extends Symbol
 {
     public Edge[][] symbols;
 
+    public transient boolean[] productiveAlts;
+
+    // for each alternative, the indexes of its first and last required
+    // (non-optional) edges, and for each edge, of the next one after it;
+    // the alternative's length stands for none at all (-1 for the last)
+    public transient int[] firstRequired, lastRequired;
+    public transient int[][] nextRequired;
+    public transient int[] minLengths;
+
     public Production(String name)
     {
         this(name, new ArrayList<List<Edge>>(), new ArrayList<Edge>());
@@ -23,6 +32,11 @@ public class Production extends Symbol
 
         for (int i = 0; i != symbols.size(); ++i)
             this.symbols[i] = symbols.get(i).toArray(new Edge[0]);
+
+        this.productiveAlts = null;
+        this.firstRequired = this.lastRequired = null;
+        this.nextRequired = null;
+        this.minLengths = null;
     }
 
     public Production(Production other)
@@ -32,6 +46,59 @@ public class Production extends Symbol
 
         for (int i = 0; i != other.symbols.length; ++i)
             this.symbols[i] = other.symbols[i].clone();
+
+        this.id = other.id;
+        this.productive = other.productive;
+        this.reachable = other.reachable;
+        this.productiveAlts = (other.productiveAlts == null)
+            ? null
+            : other.productiveAlts.clone();
+
+        // the remaining tables are never modified once computed; share them
+        this.firstRequired = other.firstRequired;
+        this.lastRequired = other.lastRequired;
+        this.nextRequired = other.nextRequired;
+        this.minLengths = other.minLengths;
+        this.first = other.first;
+        this.minLength = other.minLength;
+        this.unbounded = other.unbounded;
+    }
+
+    public boolean isProductive(int alt)
+    {
+        // without analysis results, assume every alternative is productive
+        return productiveAlts == null || productiveAlts[alt];
+    }
+
+    public void computeTables()
+    {
+        int n = symbols.length;
+
+        firstRequired = new int[n];
+        lastRequired = new int[n];
+        nextRequired = new int[n][];
+
+        for (int i = 0; i < n; ++i) {
+            Edge[] alt = symbols[i];
+            int next = alt.length;
+
+            // walk the alternative backwards, tracking the closest
+            // required edge to the right of each edge
+            nextRequired[i] = new int[alt.length];
+            lastRequired[i] = -1;
+
+            for (int j = alt.length - 1; j >= 0; --j) {
+                nextRequired[i][j] = next;
+
+                if (!alt[j].opt) {
+                    if (lastRequired[i] == -1) lastRequired[i] = j;
+                    next = j;
+                }
+            }
+
+            // the first required edge is the closest one to the left end
+            firstRequired[i] = next;
+        }
     }
 
     public Edge get(int alt, int ix)
@@ -1,6 +1,7 @@
 package tstester.grammar;
 
 import java.util.*;
+import java.util.concurrent.*;
 import org.sablecc.sablecc.analysis.*;
 import org.sablecc.sablecc.node.*;
 import nl.flotsam.xeger.*;
@@ -14,7 +15,9 @@ public class Regexp
             '(', '"', ')', '<', '\\', '>'
         ));
 
-    private static final Map<String, Xeger> cache = new HashMap<>();
+    // generators may be used concurrently (e.g. when statements are
+    // generated in parallel); Random and Xeger are both thread-safe
+    private static final Map<String, Xeger> cache = new ConcurrentHashMap<>();
     private static final Random random = new Random();
 
     public static String fromSableCCRegexp(ARegExp regexp)
@@ -195,8 +198,10 @@ public class Regexp
     {
         // check if a generator for this string hasn't been created already
         Xeger xeger = cache.get(regexp);
-        if (xeger == null)
-            cache.put(regexp, (xeger = new Xeger(regexp, random)));
+        if (xeger == null) {
+            Xeger previous = cache.putIfAbsent(regexp, (xeger = new Xeger(regexp, random)));
+            if (previous != null) xeger = previous;
+        }
 
         // generate a string using the generator
         return xeger.generate();
@@ -60,9 +60,12 @@ public class Subtree
         for (int i = 0; i != path.size() - 1; ++i) {
             edge = path.get(i);
 
-            // only create a new node if it wasn't already in the subtree
+            // only create a new node if it wasn't already in the subtree,
+            // copying shared nodes on the way down as they get modified
             if ((cur = prev.get(edge)) == null)
                 prev.put(edge, (cur = new Node(edge.dst)));
+            else if (cur.shared)
+                prev.put(edge, (cur = cur.unshare()));
 
             prev = cur;
         }
@@ -79,7 +82,7 @@ public class Subtree
         // a node already exists at this location;
         // replace it with the provided node (if valid)
         } else if (node != Node.ANY && node != null) {
-            cur.parent = null;
+            if (!cur.shared) cur.parent = null;
             prev.put(edge, node);
         }
 
@@ -107,18 +110,50 @@ public class Subtree
 
     public int depth()
     {
-        return root == null ? 0 : depth(root);
+        if (root == null) return 0;
+
+        // walk the tree using an explicit stack rather than recursing,
+        // as deep trees would otherwise overflow the call stack
+        Deque<Node> nodes = new ArrayDeque<>();
+        Deque<Integer> depths = new ArrayDeque<>();
+        int m = 0;
+
+        nodes.push(root);
+        depths.push(0);
+
+        while (!nodes.isEmpty()) {
+            Node node = nodes.pop();
+            int d = depths.pop();
+
+            if (d > m) m = d;
+
+            for (Node sub : node.values()) {
+                nodes.push(sub);
+                depths.push(d + 1);
+            }
+        }
+
+        return m;
     }
 
-    private int depth(Node node)
+    public int size()
     {
-        int d = 0, m = 0;
+        if (root == null) return 0;
 
-        for (Node sub : node.edges.values())
-            if ((d = depth(sub) + 1) > m)
-                m = d;
+        // same as above; walk the tree using an explicit stack
+        Deque<Node> nodes = new ArrayDeque<>();
+        int s = 0;
 
-        return m;
+        nodes.push(root);
+        while (!nodes.isEmpty()) {
+            Node node = nodes.pop();
+            ++s;
+
+            for (Node sub : node.values())
+                nodes.push(sub);
+        }
+
+        return s;
     }
 
     public Subtree clone()
@@ -126,6 +161,41 @@ public class Subtree
         return new Subtree(this);
     }
 
+    // copy-on-write copy; marks every node below the root as shared (so that
+    // whoever modifies them copies them first) and gives the copy its own
+    // root, referencing the same child nodes; this subtree's nodes are then
+    // shared as well, so it can no longer be modified below its root in
+    // place, and its nodes lose their parent
+    public Subtree share()
+    {
+        List<Node> order = new ArrayList<>();
+        Deque<Node> pending = new ArrayDeque<>();
+
+        for (Node sub : root.values())
+            pending.push(sub);
+
+        // collect the nodes not shared yet in pre-order; the nodes below
+        // shared ones are shared already
+        while (!pending.isEmpty()) {
+            Node node = pending.pop();
+            if (node == Node.ANY || node.shared) continue;
+
+            order.add(node);
+            for (Node sub : node.values())
+                pending.push(sub);
+        }
+
+        // and share them children first
+        for (int i = order.size() - 1; i >= 0; --i)
+            order.get(i).share();
+
+        Node copy = root.shallowClone();
+        for (Map.Entry<Edge, Node> entry : root)
+            copy.put(entry.getKey(), entry.getValue());
+
+        return new Subtree(copy);
+    }
+
     public int hashCode()
     {
         return root.hashCode();
@@ -7,21 +7,40 @@ public abstract class Symbol
     public final String name;
     public Edge[] parents;
 
+    public transient int id;
+    public transient boolean productive, reachable;
+    public transient Set<Symbol> first;
+    public transient int minLength;
+    public transient boolean unbounded;
+
     public Symbol(String name)
     {
-        this.name = name;
-        this.parents = new Edge[0];
+        this(name, new ArrayList<Edge>());
     }
 
     public Symbol(String name, List<Edge> parents)
     {
         this.name = name;
         this.parents = parents.toArray(new Edge[0]);
+
+        this.id = -1;
+        this.productive = true;
+        this.reachable = true;
+        this.first = null;
+        this.minLength = 0;
+        this.unbounded = false;
     }
 
     public Symbol(Symbol other)
     {
         this(other.name, Arrays.asList(other.parents));
+
+        this.id = other.id;
+        this.productive = other.productive;
+        this.reachable = other.reachable;
+        this.first = other.first;
+        this.minLength = other.minLength;
+        this.unbounded = other.unbounded;
     }
 
     public String toString()
@@ -7,6 +7,9 @@ public class Terminal extends Symbol
     public final String value;
     public final boolean regex;
 
+    // canonical token for fixed-string terminals, set up by the grammar
+    public transient Token token;
+
     public Terminal(String name, String value)
     {
         this(name, value, false, new ArrayList<Edge>());
@@ -28,6 +31,7 @@ public class Terminal extends Symbol
 
         this.value = value;
         this.regex = regex;
+        this.token = null;
     }
 
     public Terminal(Terminal other)
@@ -36,6 +40,7 @@ public class Terminal extends Symbol
 
         this.value = other.value;
         this.regex = other.regex;
+        this.token = null;
     }
 
     public Terminal clone()
@@ -4,7 +4,7 @@ import java.util.*;
 
 public class Token extends Node
 {
-    public String value;
+    public final String value;
 
     public Token(String name, String value)
     {
@@ -29,6 +29,24 @@ public class Token extends Node
         this.value = other.value;
     }
 
+    private Token(Terminal terminal)
+    {
+        super(terminal, true);
+
+        this.value = terminal.value;
+        this.length = 1;
+    }
+
+    // fixed-string terminals always yield the same token; a single shared
+    // instance can stand in for every one of them
+    public static Token shared(Terminal terminal)
+    {
+        if (terminal.regex)
+            throw new IllegalArgumentException("No shared token for " + terminal.name);
+
+        return new Token(terminal);
+    }
+
     public List<String> generate()
     {
         List<String> values = new LinkedList<>();
@@ -43,30 +61,29 @@ public class Token extends Node
     }
 
     public Token clone()
+    {
+        return shared ? this : new Token(this);
+    }
+
+    protected Token shallowClone()
     {
         return new Token(this);
     }
 
-    public int hashCode()
+    protected int hashCode(int edgesHash)
     {
         return (
-            23 * super.hashCode() +
+            23 * super.hashCode(edgesHash) +
             29 * value.hashCode()
         );
     }
 
-    public boolean equals(Object other)
+    protected boolean equalsNode(Node other)
     {
-        if (other == null || !getClass().equals(other.getClass()))
-            return false;
-
         Token that = (Token)(other);
         return (
-            name.equals(that.name) &&
-            value.equals(that.value) &&
-            edges.equals(that.edges) &&
-            (parent == null ? that.parent == null : parent.equals(that.parent)) &&
-            (sym == null ? that.sym == null : sym.equals(that.sym))
+            super.equalsNode(that) &&
+            value.equals(that.value)
         );
     }
 }
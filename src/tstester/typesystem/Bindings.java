@@ -0,0 +1,290 @@
+package tstester.typesystem;
+
+import java.util.*;
+
+class Bindings<K, V> extends AbstractMap<K, V>
+{
+    // keys with a dense (local) index in the statement's rule are stored in
+    // a plain array by that index; any other key (e.g. one of the global
+    // environment's variables) goes into the overflow map
+    private final K[] keys;
+    private Object[] values;
+    private int count;
+    private Map<K, V> overflow;
+
+    // copies share the value array and overflow map until either side
+    // modifies them (copy-on-write)
+    private boolean owned;
+
+    // marks null values, as a null array entry means no value at all
+    private static final Object NULL = new Object();
+
+    public Bindings(K[] keys)
+    {
+        this.keys = keys;
+        this.values = new Object[keys.length];
+        this.count = 0;
+        this.overflow = null;
+        this.owned = true;
+    }
+
+    public Bindings(Bindings<K, V> other)
+    {
+        this.keys = other.keys;
+        this.values = other.values;
+        this.count = other.count;
+        this.overflow = other.overflow;
+
+        this.owned = other.owned = false;
+    }
+
+    public static <K, V> Map<K, V> copy(Map<K, V> map)
+    {
+        if (map instanceof Bindings)
+            return new Bindings<>((Bindings<K, V>)(map));
+
+        return new IdentityHashMap<>(map);
+    }
+
+    public int size()
+    {
+        return count + (overflow == null ? 0 : overflow.size());
+    }
+
+    public boolean containsKey(Object key)
+    {
+        int ix = index(key);
+        if (ix >= 0) return values[ix] != null;
+
+        return overflow != null && overflow.containsKey(key);
+    }
+
+    public V get(Object key)
+    {
+        int ix = index(key);
+        if (ix >= 0) return unwrap(values[ix]);
+
+        return (overflow == null) ? null : overflow.get(key);
+    }
+
+    public V put(K key, V value)
+    {
+        own();
+
+        int ix = index(key);
+        if (ix < 0) {
+            if (overflow == null) overflow = new IdentityHashMap<>();
+            return overflow.put(key, value);
+        }
+
+        Object previous = values[ix];
+        if (previous == null) ++count;
+
+        values[ix] = (value == null) ? NULL : value;
+        return unwrap(previous);
+    }
+
+    public V remove(Object key)
+    {
+        own();
+
+        int ix = index(key);
+        if (ix < 0) return (overflow == null) ? null : overflow.remove(key);
+
+        Object previous = values[ix];
+        if (previous != null) --count;
+
+        values[ix] = null;
+        return unwrap(previous);
+    }
+
+    public void clear()
+    {
+        values = new Object[keys.length];
+        count = 0;
+        overflow = null;
+        owned = true;
+    }
+
+    public Set<Map.Entry<K, V>> entrySet()
+    {
+        return new AbstractSet<Map.Entry<K, V>>() {
+            public int size()
+            {
+                return Bindings.this.size();
+            }
+
+            public Iterator<Map.Entry<K, V>> iterator()
+            {
+                return new EntryIterator();
+            }
+        };
+    }
+
+    private class EntryIterator implements Iterator<Map.Entry<K, V>>
+    {
+        private int next = 0;
+        private Iterator<Map.Entry<K, V>> rest = null;
+
+        public boolean hasNext()
+        {
+            while (next < values.length && values[next] == null)
+                ++next;
+
+            if (next < values.length) return true;
+
+            if (rest == null && overflow != null)
+                rest = overflow.entrySet().iterator();
+
+            return rest != null && rest.hasNext();
+        }
+
+        public Map.Entry<K, V> next()
+        {
+            if (!hasNext()) throw new NoSuchElementException();
+
+            if (rest != null) return new OverflowEntry(rest.next());
+            return new Entry(next++);
+        }
+
+        public void remove()
+        {
+            throw new UnsupportedOperationException();
+        }
+    }
+
+    private class Entry implements Map.Entry<K, V>
+    {
+        private final int ix;
+
+        public Entry(int ix)
+        {
+            this.ix = ix;
+        }
+
+        public K getKey()
+        {
+            return keys[ix];
+        }
+
+        public V getValue()
+        {
+            return unwrap(values[ix]);
+        }
+
+        public V setValue(V value)
+        {
+            own();
+
+            V previous = unwrap(values[ix]);
+            values[ix] = (value == null) ? NULL : value;
+
+            return previous;
+        }
+
+        public int hashCode()
+        {
+            K key = keys[ix];
+            V value = getValue();
+
+            return (
+                (key == null ? 0 : key.hashCode()) ^
+                (value == null ? 0 : value.hashCode())
+            );
+        }
+
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof Map.Entry)) return false;
+
+            Map.Entry<?, ?> that = (Map.Entry<?, ?>)(other);
+            V value = getValue();
+
+            return (
+                keys[ix] == that.getKey() &&
+                (value == null ? that.getValue() == null : value.equals(that.getValue()))
+            );
+        }
+    }
+
+    // the overflow map's own entries hash by identity, while maps compare
+    // their values with equals; hash them like the array entries instead
+    private class OverflowEntry implements Map.Entry<K, V>
+    {
+        private final Map.Entry<K, V> entry;
+
+        public OverflowEntry(Map.Entry<K, V> entry)
+        {
+            this.entry = entry;
+        }
+
+        public K getKey()
+        {
+            return entry.getKey();
+        }
+
+        public V getValue()
+        {
+            return entry.getValue();
+        }
+
+        public V setValue(V value)
+        {
+            // modify the (possibly copied) overflow map, not the shared one
+            own();
+            return overflow.put(entry.getKey(), value);
+        }
+
+        public int hashCode()
+        {
+            K key = getKey();
+            V value = getValue();
+
+            return (
+                (key == null ? 0 : key.hashCode()) ^
+                (value == null ? 0 : value.hashCode())
+            );
+        }
+
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof Map.Entry)) return false;
+
+            Map.Entry<?, ?> that = (Map.Entry<?, ?>)(other);
+            V value = getValue();
+
+            return (
+                getKey() == that.getKey() &&
+                (value == null ? that.getValue() == null : value.equals(that.getValue()))
+            );
+        }
+    }
+
+    private void own()
+    {
+        if (owned) return;
+
+        values = values.clone();
+        if (overflow != null) overflow = new IdentityHashMap<>(overflow);
+
+        owned = true;
+    }
+
+    private int index(Object key)
+    {
+        int ix = -1;
+        if (key instanceof Variable)
+            ix = ((Variable)(key)).local;
+        else if (key instanceof Rule.Slot)
+            ix = ((Rule.Slot)(key)).local;
+
+        // local indexes are only valid within their own rule
+        return (ix >= 0 && ix < keys.length && keys[ix] == key) ? ix : -1;
+    }
+
+    @SuppressWarnings("unchecked")
+    private V unwrap(Object value)
+    {
+        return (value == NULL) ? null : (V)(value);
+    }
+}
@@ -0,0 +1,168 @@
+package tstester.typesystem;
+
+import java.util.*;
+import tstester.grammar.*;
+
+public class CoverageSourceSelector implements TypeSystem.SourceSelector
+{
+    public final Coverage coverage;
+    public final Random random;
+
+    // number of times each (rule, slot, source) choice was made, where the
+    // slot is either the variable a source is picked for or the type an
+    // inset rule is picked for
+    private final Map<Choice, Integer> hits;
+
+    private static class Choice
+    {
+        public final Rule rule;
+        public final Object slot;
+        public final Object source;
+        private final int hash;
+
+        public Choice(Rule rule, Object slot, Object source)
+        {
+            this.rule = rule;
+            this.slot = slot;
+            this.source = source;
+
+            // rules, variables and types are compared by identity
+            this.hash = (
+                7 * System.identityHashCode(rule) +
+                11 * System.identityHashCode(slot) +
+                13 * source.hashCode()
+            );
+        }
+
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        public boolean equals(Object other)
+        {
+            if (!(other instanceof Choice)) return false;
+
+            Choice that = (Choice)(other);
+            return (
+                rule == that.rule &&
+                slot == that.slot &&
+                source.equals(that.source)
+            );
+        }
+    }
+
+    public CoverageSourceSelector(Coverage coverage)
+    {
+        this(coverage, new Random());
+    }
+
+    public CoverageSourceSelector(Coverage coverage, Random random)
+    {
+        this.coverage = coverage;
+        this.random = random;
+        this.hits = new HashMap<>();
+    }
+
+    public synchronized Source selectVariableSource(Statement stmt, Variable var, List<Source> sources)
+    {
+        int[] scores = new int[sources.size()];
+        BitSet covered = coverage.covered();
+
+        // the nesting depth is bounded by the type system, which stops
+        // asking once too deep (see TypeSystem.maxDepth)
+        for (int i = 0; i < scores.length; ++i) {
+            Source source = sources.get(i);
+            Rule rule = (source instanceof Source.Variable)
+                ? ((Source.Variable)(source)).var.rule
+                : null;
+
+            scores[i] = score(stmt.rule, var, source, rule, covered);
+        }
+
+        Source source = sources.get(pick(scores));
+        hit(stmt.rule, var, source);
+
+        return source;
+    }
+
+    public synchronized Rule selectTypedValueSource(Statement stmt, Value.Type type, List<Rule> sources)
+    {
+        return selectRule(stmt, type, sources);
+    }
+
+    public synchronized Rule selectTypeLiteralSource(Statement stmt, Value.Type type, List<Rule> sources)
+    {
+        return selectRule(stmt, type, sources);
+    }
+
+    public synchronized int choices()
+    {
+        return hits.size();
+    }
+
+    public synchronized int hits(Rule rule, Object slot, Object source)
+    {
+        Integer n = hits.get(new Choice(rule, slot, source));
+        return n == null ? 0 : n;
+    }
+
+    private Rule selectRule(Statement stmt, Value.Type type, List<Rule> sources)
+    {
+        int[] scores = new int[sources.size()];
+        BitSet covered = coverage.covered();
+
+        for (int i = 0; i < scores.length; ++i) {
+            Rule rule = sources.get(i);
+            scores[i] = score(stmt.rule, type, rule, rule, covered);
+        }
+
+        Rule rule = sources.get(pick(scores));
+        hit(stmt.rule, type, rule);
+
+        return rule;
+    }
+
+    private int score(Rule rule, Object slot, Object source, Rule target, BitSet covered)
+    {
+        // every uncovered alternative and edge of the symbol the choice
+        // leads to (as hinted by the target rule) counts for a choice, and
+        // every time it was made counts against it (lower scores are better)
+        int score = hits(rule, slot, source);
+
+        if (target != null && target.sym instanceof Production) {
+            Production production = (Production)(target.sym);
+
+            score -= coverage.uncoveredAlternatives(production, covered);
+            score -= coverage.uncoveredEdges(production, covered);
+        }
+
+        return score;
+    }
+
+    private void hit(Rule rule, Object slot, Object source)
+    {
+        Choice choice = new Choice(rule, slot, source);
+        Integer n = hits.get(choice);
+
+        hits.put(choice, n == null ? 1 : n + 1);
+    }
+
+    private int pick(int[] scores)
+    {
+        // pick one of the best scored choices at random
+        int best = Integer.MAX_VALUE, count = 0, picked = 0;
+        for (int i = 0; i < scores.length; ++i) {
+            if (scores[i] > best) continue;
+
+            if (scores[i] < best) {
+                best = scores[i];
+                count = 0;
+            }
+
+            if (random.nextInt(++count) == 0) picked = i;
+        }
+
+        return picked;
+    }
+}
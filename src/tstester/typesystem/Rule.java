@@ -10,18 +10,25 @@ public class Rule
     public final Map<String, Variable> vars;
     public Symbol sym;
 
+    // dense local indexes of the rule's variables and slots (see index);
+    // statements keep their bindings in arrays sized from these
+    public transient Variable[] locals;
+    public transient Slot[] localSlots;
+
     public static class Slot {
         public enum Type { SYMBOL, TYPE_LITERAL, TYPED_VALUE }
 
         public final int ix;
         public final Type type;
         public final Variable var;
+        transient int local;
 
         public Slot(int ix, Type type, Variable var)
         {
             this.ix = ix;
             this.type = type;
             this.var = var;
+            this.local = -1;
         }
 
         public String toString()
@@ -63,6 +70,43 @@ public class Rule
         this.slots = new ArrayList<>(slots);
         this.vars = new HashMap<>();
         this.sym = null;
+
+        this.locals = new Variable[0];
+        this.localSlots = new Slot[0];
+    }
+
+    public void index()
+    {
+        List<Variable> found = new ArrayList<>();
+        Deque<Variable> pending = new ArrayDeque<>();
+
+        for (Variable var : vars.values())
+            pending.push(var);
+
+        for (Slot slot : slots)
+            pending.push(slot.var);
+
+        // number every variable statements of this rule usually bind (the
+        // rule's variables and their fields); variables already numbered by
+        // another rule are left out, and end up in the statements' overflow
+        while (!pending.isEmpty()) {
+            Variable var = pending.pop();
+            if (var.local >= 0) continue;
+
+            var.local = found.size();
+            found.add(var);
+
+            for (Map.Entry<Variable, Variable> entry : var.fields.entrySet()) {
+                pending.push(entry.getKey());
+                pending.push(entry.getValue());
+            }
+        }
+
+        locals = found.toArray(new Variable[0]);
+        localSlots = slots.toArray(new Slot[0]);
+
+        for (int i = 0; i < localSlots.length; ++i)
+            localSlots[i].local = i;
     }
 
     public String toString()
@@ -0,0 +1,216 @@
+package tstester.typesystem;
+
+import java.util.*;
+
+public class RuleGraph
+{
+    public final TypeSystem typeSystem;
+
+    // rule dependencies, as found from the slots' variable sources (a rule
+    // depends on the rules whose statements its templates can source from);
+    // rules are compared by identity throughout
+    private final Map<Rule, List<Rule>> dependencies;
+    private final Map<Rule, List<Rule>> dependents;
+
+    // strongly connected components, in dependency order (every component
+    // comes after the ones it depends on), and the strata made out of them
+    public final List<List<Rule>> components;
+    public final List<List<Rule>> strata;
+    private final Map<Rule, Integer> component;
+    private final Set<Rule> recursive;
+
+    public RuleGraph(TypeSystem typeSystem)
+    {
+        this.typeSystem = typeSystem;
+        this.dependencies = new IdentityHashMap<>();
+        this.dependents = new IdentityHashMap<>();
+        this.components = new ArrayList<>();
+        this.strata = new ArrayList<>();
+        this.component = new IdentityHashMap<>();
+        this.recursive = Collections.newSetFromMap(new IdentityHashMap<Rule, Boolean>());
+
+        for (Rule rule : typeSystem.rules) {
+            dependencies.put(rule, new ArrayList<Rule>());
+            dependents.put(rule, new ArrayList<Rule>());
+        }
+
+        for (Rule rule : typeSystem.rules)
+            for (Rule dependency : findDependencies(rule)) {
+                dependencies.get(rule).add(dependency);
+                if (dependents.containsKey(dependency))
+                    dependents.get(dependency).add(rule);
+            }
+
+        findComponents();
+        findStrata();
+    }
+
+    public List<Rule> dependencies(Rule rule)
+    {
+        List<Rule> found = dependencies.get(rule);
+        return found == null
+            ? Collections.<Rule>emptyList()
+            : Collections.unmodifiableList(found);
+    }
+
+    public List<Rule> dependents(Rule rule)
+    {
+        List<Rule> found = dependents.get(rule);
+        return found == null
+            ? Collections.<Rule>emptyList()
+            : Collections.unmodifiableList(found);
+    }
+
+    public int component(Rule rule)
+    {
+        Integer ix = component.get(rule);
+        return ix == null ? -1 : ix;
+    }
+
+    // whether the rule can (indirectly) depend on itself
+    public boolean isRecursive(Rule rule)
+    {
+        return recursive.contains(rule);
+    }
+
+    // the groups of rules depending on each other (in a cycle)
+    public List<List<Rule>> cycles()
+    {
+        List<List<Rule>> found = new ArrayList<>();
+        for (List<Rule> members : components)
+            if (recursive.contains(members.get(0)))
+                found.add(Collections.unmodifiableList(members));
+
+        return found;
+    }
+
+    private List<Rule> findDependencies(Rule rule)
+    {
+        Set<Rule> found = Collections.newSetFromMap(new IdentityHashMap<Rule, Boolean>());
+        List<Rule> ordered = new ArrayList<>();
+
+        // same lookup as createTemplate: each slot variable (or the first
+        // parent with sources) is sourced from the statement of another rule
+        // whenever one of its sources is a variable source
+        for (Rule.Slot slot : rule.slots) {
+            Variable var = slot.var;
+            while (var != null && var.sources.isEmpty())
+                var = var.parent;
+
+            if (var == null) continue;
+
+            for (Source source : Sources.expand(var)) {
+                if (!(source instanceof Source.Variable)) continue;
+
+                Rule dependency = ((Source.Variable)(source)).var.rule;
+                if (dependency != null && found.add(dependency))
+                    ordered.add(dependency);
+            }
+        }
+
+        return ordered;
+    }
+
+    private void findComponents()
+    {
+        // Tarjan's algorithm, using an explicit stack rather than recursing;
+        // components come out with dependencies first
+        Map<Rule, Integer> index = new IdentityHashMap<>();
+        Map<Rule, Integer> low = new IdentityHashMap<>();
+        Set<Rule> onStack = Collections.newSetFromMap(new IdentityHashMap<Rule, Boolean>());
+        Deque<Rule> stack = new ArrayDeque<>();
+        Deque<Rule> calls = new ArrayDeque<>();
+        Deque<Iterator<Rule>> iterators = new ArrayDeque<>();
+
+        for (Rule start : typeSystem.rules) {
+            if (index.containsKey(start)) continue;
+
+            enter(start, index, low, onStack, stack, calls, iterators);
+            while (!calls.isEmpty()) {
+                Rule rule = calls.peek();
+                Iterator<Rule> iter = iterators.peek();
+
+                if (iter.hasNext()) {
+                    Rule next = iter.next();
+
+                    if (!index.containsKey(next))
+                        enter(next, index, low, onStack, stack, calls, iterators);
+                    else if (onStack.contains(next))
+                        low.put(rule, Math.min(low.get(rule), index.get(next)));
+
+                    continue;
+                }
+
+                calls.pop();
+                iterators.pop();
+
+                if (!calls.isEmpty()) {
+                    Rule caller = calls.peek();
+                    low.put(caller, Math.min(low.get(caller), low.get(rule)));
+                }
+
+                // a root; pop its component off the stack
+                if (low.get(rule).equals(index.get(rule))) {
+                    List<Rule> members = new ArrayList<>();
+                    Rule member;
+
+                    do {
+                        member = stack.pop();
+                        onStack.remove(member);
+
+                        members.add(member);
+                        component.put(member, components.size());
+                    } while (member != rule);
+
+                    components.add(members);
+                }
+            }
+        }
+
+        // rules in a cycle (or depending on themselves directly) are recursive
+        for (List<Rule> members : components)
+            for (Rule rule : members)
+                if (members.size() > 1 || dependencies.get(rule).contains(rule))
+                    recursive.add(rule);
+    }
+
+    private void enter(
+        Rule rule,
+        Map<Rule, Integer> index,
+        Map<Rule, Integer> low,
+        Set<Rule> onStack,
+        Deque<Rule> stack,
+        Deque<Rule> calls,
+        Deque<Iterator<Rule>> iterators
+    )
+    {
+        index.put(rule, index.size());
+        low.put(rule, index.get(rule));
+
+        stack.push(rule);
+        onStack.add(rule);
+
+        calls.push(rule);
+        iterators.push(dependencies(rule).iterator());
+    }
+
+    private void findStrata()
+    {
+        // each component goes one stratum above the highest of the components
+        // it depends on; components within a stratum are independent
+        int[] levels = new int[components.size()];
+
+        for (int c = 0; c < components.size(); ++c) {
+            for (Rule rule : components.get(c))
+                for (Rule dependency : dependencies.get(rule)) {
+                    int d = component(dependency);
+                    if (d >= 0 && d != c) levels[c] = Math.max(levels[c], levels[d] + 1);
+                }
+
+            while (strata.size() <= levels[c])
+                strata.add(new ArrayList<Rule>());
+
+            strata.get(levels[c]).addAll(components.get(c));
+        }
+    }
+}
@@ -6,6 +6,20 @@ public class Sources
 {
     private Sources() { }
 
+    // field path followed by find, as an immutable list of keys
+    // (so that every step can share the rest of its caller's path)
+    private static class Path
+    {
+        public final Variable key;
+        public final Path next;
+
+        public Path(Variable key, Path next)
+        {
+            this.key = key;
+            this.next = next;
+        }
+    }
+
     public static List<Source> expand(Source base)
     {
         List<Source> sources = new ArrayList<>();
@@ -47,6 +61,14 @@ public class Sources
         return sources;
     }
 
+    public static List<Source> expand(Variable var)
+    {
+        // frozen variables come with their expansion precomputed
+        if (var.expanded != null) return var.expanded;
+
+        return expand(var.sources);
+    }
+
     public static List<Source> expand(List<Source> sources)
     {
         List<Source> all = new ArrayList<>();
@@ -60,9 +82,12 @@ public class Sources
 
     public static List<Source> find(Variable var)
     {
+        // frozen variables come with their (statement-less) sources precomputed
+        if (var.found != null) return var.found;
+
         return find(
             null,
-            new ArrayDeque<Variable>(),
+            null,
             var,
             Collections.newSetFromMap(new IdentityHashMap<Variable, Boolean>())
         );
@@ -72,7 +97,7 @@ public class Sources
     {
         return find(
             stmt,
-            new ArrayDeque<Variable>(),
+            null,
             var,
             Collections.newSetFromMap(new IdentityHashMap<Variable, Boolean>())
         );
@@ -80,7 +105,7 @@ public class Sources
 
     private static List<Source> find(
         Statement stmt,
-        Deque<Variable> path,
+        Path path,
         Variable var,
         Set<Variable> visited
     )
@@ -93,7 +118,7 @@ public class Sources
         // as base sources for the search
         List<Source> base;
         if (stmt == null)
-            base = expand(var.sources);
+            base = expand(var);
 
         // in statement context, use the fixed source set in the statement
         else if (stmt.vars.containsKey(var))
@@ -111,36 +136,29 @@ public class Sources
             if (source instanceof Source.Variable)
                 found.addAll(find(
                     source.stmt,
-                    new ArrayDeque<>(path),
+                    path,
                     ((Source.Variable)(source)).var,
                     visited
                 ));
 
             // and add value sources to the output list
             // (if at the end of the path)
-            else if (path.isEmpty())
+            else if (path == null)
                 found.add(source);
         }
 
         // if the current variable has the right field, try finding sources down
-        // the field tree, following the path (and removing the saved key placed
+        // the field tree, following the path (and dropping the saved key placed
         // there earlier)
-        Variable field = path.isEmpty() ? null : var.get(path.peekFirst());
-        if (field != null) {
-            Deque<Variable> copy = new ArrayDeque<>(path);
-            copy.removeFirst();
-
-            found.addAll(find(stmt, copy, field, visited));
-        }
+        Variable field = (path == null) ? null : var.get(path.key);
+        if (field != null)
+            found.addAll(find(stmt, path.next, field, visited));
 
         // if a parent is available, try finding sources up the field tree, saving
         // the field's key on the path (as moving down will be required later)
-        Variable key = (var.parent == null) ? null : var.parent.getKey(var);
-        if (key != null) {
-            path.addFirst(key);
-
-            found.addAll(find(stmt, path, var.parent, visited));
-        }
+        Variable key = var.key();
+        if (key != null)
+            found.addAll(find(stmt, new Path(key, path), var.parent, visited));
 
         return found;
     }
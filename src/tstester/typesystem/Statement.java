@@ -15,6 +15,10 @@ public class Statement
     public transient Subtree generated;
     public transient int depth;
 
+    // whether the inset statements are this statement's own, or still
+    // shared with a copy (or the statement it was copied from)
+    private transient boolean ownsInsets;
+
     public Statement(Rule rule)
     {
         this(rule, null);
@@ -23,44 +27,86 @@ public class Statement
     public Statement(Rule rule, Statement parent)
     {
         this.rule = rule;
-        this.vars = new IdentityHashMap<>();
-        this.values = new IdentityHashMap<>();
-        this.insets = new IdentityHashMap<>();
+        this.vars = new Bindings<>(rule.locals);
+        this.values = new Bindings<>(rule.locals);
+        this.insets = new Bindings<>(rule.localSlots);
         this.parent = parent;
 
         this.dependencies = null;
         this.generated = null;
-        this.depth = 0;
+        this.depth = (parent == null) ? 0 : parent.depth + 1;
+        this.ownsInsets = true;
     }
 
     public Statement(Statement other)
+    {
+        this(other, true);
+    }
+
+    private Statement(Statement other, boolean share)
     {
         this.rule = other.rule;
         this.parent = other.parent;
 
-        this.vars = new IdentityHashMap<>();
-        for (Map.Entry<Variable, Source> entry : other.vars.entrySet())
-            this.vars.put(entry.getKey(), entry.getValue().clone());
-
-        this.values = new IdentityHashMap<>();
-        for (Map.Entry<Variable, Value> entry : other.values.entrySet())
-            this.values.put(entry.getKey(), entry.getValue().clone());
-
-        this.insets = new IdentityHashMap<>();
-        for (Map.Entry<Rule.Slot, Statement> entry : other.insets.entrySet())
-            this.insets.put(entry.getKey(), entry.getValue().clone());
-
+        // copies are copy-on-write: the bindings are only copied once
+        // modified, and the sources and values they hold are shared (they
+        // don't change once bound)
+        this.vars = Bindings.copy(other.vars);
+        this.values = Bindings.copy(other.values);
+
+        // so are the inset statements, which are only copied (see ownInsets)
+        // once either side is about to generate them
+        this.insets = Bindings.copy(other.insets);
+        this.ownsInsets = other.ownsInsets = false;
+
+        // the generated subtrees share their nodes; note that this changes
+        // the copied statement as well: its nodes become shared (immutable,
+        // and without parent), and get copied by whoever modifies them
+        // (see detach for a copy leaving them alone)
         this.dependencies = null;
-        this.generated = other.generated.clone();
+        this.generated = copy(other.generated, share);
         this.depth = other.depth;
 
         if (other.dependencies != null) {
             this.dependencies = new ArrayList<>();
             for (Subtree subtree : other.dependencies)
-                this.dependencies.add(subtree.clone());
+                this.dependencies.add(copy(subtree, share));
         }
     }
 
+    // a copy with subtrees of its own, leaving this statement's subtrees
+    // as they are; for keeping a statement around (and sharing copies of it
+    // later on) while its own subtrees are handed out and modified
+    public Statement detach()
+    {
+        return new Statement(this, false);
+    }
+
+    private static Subtree copy(Subtree subtree, boolean share)
+    {
+        if (subtree == null) return null;
+
+        return share ? subtree.share() : new Subtree(subtree);
+    }
+
+    public void ownInsets()
+    {
+        if (ownsInsets) return;
+
+        // copy the shared inset statements (which copies theirs lazily)
+        List<Rule.Slot> slots = new ArrayList<>(insets.keySet());
+        for (Rule.Slot slot : slots) {
+            Statement inset = insets.get(slot);
+            if (inset == null) continue;
+
+            inset = inset.clone();
+            inset.parent = this;
+            insets.put(slot, inset);
+        }
+
+        ownsInsets = true;
+    }
+
     public String toString()
     {
         return "|" + rule.toString() + "|";
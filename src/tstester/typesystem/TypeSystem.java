@@ -1,6 +1,7 @@
 package tstester.typesystem;
 
 import java.util.*;
+import java.util.concurrent.*;
 import tstester.grammar.*;
 import tstester.grammar.Node;
 import tstester.sablecc.rgrammar.analysis.*;
@@ -15,9 +16,31 @@ public class TypeSystem
     public final Map<Value.Type, List<Rule>> valueSources;
     public final Map<Value.Type, List<Rule>> literalSources;
 
+    // which rules feed which, set up once every rule has been read
+    private RuleGraph graph;
+
+    // statements nested deeper than this (through variable sources or
+    // insets) bypass the selector and go for the cheapest source that
+    // doesn't lead back to a recursive rule, to keep generation bounded
+    public int maxDepth;
+
     private final List<Pair<Variable, Rule>> rawValueSources;
     private final List<Pair<Variable, Rule>> rawLiteralSources;
 
+    // when set, generated inset statements are kept by (slot type, type
+    // value, rule) and later insets with the same key get a copy instead of
+    // being created, bound and generated again; this ignores whatever the
+    // selector would have picked within the inset, hence is off by default
+    public boolean insetCaching;
+    private final Map<InsetKey, Statement> insetCache;
+
+    // when set, generated dependency statements are pooled by rule and bound
+    // values, and later dependencies with the same rule and values reuse the
+    // pooled statement's subtrees instead of being generated again (across
+    // generate calls); off by default, for the same reason as insetCaching
+    public boolean dependencyPooling;
+    private final Map<DependencyKey, Statement> dependencyPool;
+
     // TODO 'not implemented' tags (options, context, scope, conditions, functions)
     // TODO testing
 
@@ -60,6 +83,14 @@ public class TypeSystem
 
         this.rawValueSources = new ArrayList<>();
         this.rawLiteralSources = new ArrayList<>();
+        this.graph = null;
+        this.maxDepth = 8;
+
+        this.insetCaching = false;
+        this.insetCache = new ConcurrentHashMap<>();
+
+        this.dependencyPooling = false;
+        this.dependencyPool = new ConcurrentHashMap<>();
     }
 
     public static TypeSystem fromSableCCTypeSystem(ATypeSystemSpec spec, Grammar grammar)
@@ -92,13 +123,27 @@ public class TypeSystem
         for (PRule rule : spec.getRule())
             t.readRule(rule);
 
+        // the variable graph is complete at this point
+        t.freeze();
+
         // resolve typed value sources and type literal sources
         t.resolveTypeSources(t.rawValueSources, t.valueSources);
         t.resolveTypeSources(t.rawLiteralSources, t.literalSources);
 
+        // and find out how rules depend on each other
+        t.graph = new RuleGraph(t);
+
         return t;
     }
 
+    public synchronized RuleGraph graph()
+    {
+        // type systems built from SableCC get their graph right away,
+        // others once it's first needed (with every rule added by then)
+        if (graph == null) graph = new RuleGraph(this);
+        return graph;
+    }
+
     public List<Subtree> generate(Rule rule)
     {
         return generate(rule, new ShortSourceSelector());
@@ -121,6 +166,63 @@ public class TypeSystem
         return subtrees;
     }
 
+    public Map<Rule, List<Subtree>> generateAll(SourceSelector selector)
+    {
+        return generateAll(selector, null);
+    }
+
+    public Map<Rule, List<Subtree>> generateAll(
+        SourceSelector selector,
+        Map<Rule, RuntimeException> errors
+    )
+    {
+        Map<Rule, List<Subtree>> generated = new LinkedHashMap<>();
+
+        // go through the rules stratum by stratum, dependencies first, so
+        // that (with dependencyPooling) dependent rules reuse what the rules
+        // they depend on already generated
+        for (List<Rule> stratum : graph().strata) {
+            List<Statement> stmts = new ArrayList<>();
+
+            // create and bind the templates one after the other, as the
+            // selector is in charge of these
+            for (Rule rule : stratum) {
+                try {
+                    Statement stmt = createTemplate(rule, selector);
+                    if (stmt == null) continue;
+
+                    bindValues(stmt, selector);
+                    stmts.add(stmt);
+
+                } catch (RuntimeException e) {
+                    if (errors == null) throw e;
+                    errors.put(rule, e);
+                }
+            }
+
+            // rules within a stratum are independent; generate them concurrently
+            RuntimeException[] failed = tryGenerate(stmts, true);
+
+            for (int i = 0; i < stmts.size(); ++i) {
+                Statement stmt = stmts.get(i);
+
+                if (failed[i] != null) {
+                    if (errors == null) throw failed[i];
+                    errors.put(stmt.rule, failed[i]);
+                    continue;
+                }
+
+                if (dependencyPooling) pool(stmt);
+
+                List<Subtree> subtrees = new ArrayList<>(stmt.dependencies);
+                subtrees.add(stmt.generated);
+                generated.put(stmt.rule, subtrees);
+            }
+        }
+
+        return generated;
+    }
+
     public List<Subtree> generate(final Statement stmt)
     {
         // generate the statement's dependencies
@@ -154,9 +256,11 @@ public class TypeSystem
 
                 Value.Symbol sym = (Value.Symbol)(value);
 
-                // generate the corresponding node (assuming it doesn't already exist)
-                if (sym.node == null) sym.node = grammar.shortGenerate(sym.sym);
-                node = sym.node.clone();
+                // generate the corresponding node (assuming it doesn't already exist);
+                // statements may be generated concurrently, so read it only once
+                Node shortest = sym.node;
+                if (shortest == null) sym.node = (shortest = grammar.shortGenerate(sym.sym));
+                node = shortest.clone();
 
             // otherwise, use the slot's inset statement
             // as an inset node (via its generated subtree)
@@ -175,16 +279,9 @@ public class TypeSystem
             nodes.set(slot.ix, node);
         }
 
-        // at this point the node list is complete; locate it in the grammar
-        // and filter the results to match the rule's hint (if applicable)
-        List<Subtree> located = grammar.locateChain(nodes);
-        if (stmt.rule.sym != null)
-            located = filter(located, new Predicate<Subtree>() {
-                public boolean apply(Subtree subtree)
-                {
-                    return subtree.root.sym == stmt.rule.sym;
-                }
-            });
+        // at this point the node list is complete; locate it in the grammar,
+        // only keeping the results matching the rule's hint (if applicable)
+        List<Subtree> located = grammar.locateChain(nodes, stmt.rule.sym);
 
         // cannot locate? error out
         if (located.isEmpty())
@@ -242,10 +339,16 @@ public class TypeSystem
                 continue;
 
             // select a source from the variable's source list
-            List<Source> all = Sources.expand(var.sources);
-            Source source = (all.size() > 1)
-                ? selector.selectVariableSource(stmt, var, all).clone()
-                : all.get(0).clone();
+            // (or the cheapest one, once deep enough)
+            List<Source> all = Sources.expand(var);
+            Source source;
+
+            if (stmt.depth >= maxDepth)
+                source = cheapestSource(stmt, all).clone();
+            else if (all.size() > 1)
+                source = selector.selectVariableSource(stmt, var, all).clone();
+            else
+                source = all.get(0).clone();
 
             // add the variable and its source to the statement,
             // and create a new template if the source is another variable
@@ -594,6 +697,124 @@ public class TypeSystem
         return reader.out;
     }
 
+    private void freeze()
+    {
+        List<Variable> all = new ArrayList<>();
+        Deque<Variable> pending = new ArrayDeque<>();
+        Deque<Value> values = new ArrayDeque<>();
+
+        pending.push(environment);
+        for (Rule rule : rules)
+            for (Variable var : rule.vars.values())
+                pending.push(var);
+
+        for (Pair<Variable, Rule> pair : rawValueSources)
+            pending.push(pair.left);
+
+        for (Pair<Variable, Rule> pair : rawLiteralSources)
+            pending.push(pair.left);
+
+        // walk the whole variable graph (fields and variable sources),
+        // freezing every variable and saving its key along the way, as well
+        // as the values it is sourced from
+        while (!pending.isEmpty()) {
+            Variable var = pending.pop();
+            if (var.frozen) continue;
+
+            var.key = (var.parent == null) ? null : var.parent.getKey(var);
+            var.frozen = true;
+            all.add(var);
+
+            for (Map.Entry<Variable, Variable> entry : var.fields.entrySet()) {
+                pending.push(entry.getKey());
+                pending.push(entry.getValue());
+            }
+
+            for (Source source : var.sources)
+                if (source instanceof Source.Variable)
+                    pending.push(((Source.Variable)(source)).var);
+                else if (source instanceof Source.Value)
+                    values.push(((Source.Value)(source)).value);
+        }
+
+        List<Value> frozen = new ArrayList<>();
+        while (!values.isEmpty()) {
+            Value value = values.pop();
+            if (value.frozen) continue;
+
+            value.frozen = true;
+            frozen.add(value);
+
+            Map<Variable, Value> fields = Collections.emptyMap();
+            if (value instanceof Value.Compound)
+                fields = ((Value.Compound)(value)).fields;
+            else if (value instanceof Value.Type)
+                fields = ((Value.Type)(value)).fields;
+
+            for (Value field : fields.values())
+                values.push(field);
+        }
+
+        // give equal variables the same canonical id, so that comparing
+        // them from now on doesn't have to go through their whole structure
+        Map<Variable, Integer> variableIds = new HashMap<>();
+        for (Variable var : all) {
+            Integer id = variableIds.get(var);
+            if (id == null) variableIds.put(var, (id = variableIds.size() + 1));
+
+            var.id = id;
+            var.numbering = this;
+        }
+
+        // and the same for values, except for symbols (and the values that
+        // hold them), whose node only gets generated later on
+        Map<Value, Integer> valueIds = new HashMap<>();
+        for (Value value : frozen) {
+            if (holdsSymbols(value)) continue;
+
+            Integer id = valueIds.get(value);
+            if (id == null) valueIds.put(value, (id = valueIds.size() + 1));
+
+            value.id = id;
+            value.numbering = this;
+        }
+
+        // number the variables and slots of every rule, for statements
+        // to store their bindings in arrays
+        for (Rule rule : rules)
+            rule.index();
+
+        // with nothing changing anymore, precompute the statement-less
+        // lookups, which every later call would otherwise redo
+        for (Variable var : all)
+            var.expanded = Collections.unmodifiableList(Sources.expand(var.sources));
+
+        for (Variable var : all)
+            var.found = Collections.unmodifiableList(Sources.find(var));
+    }
+
+    private static boolean holdsSymbols(Value value)
+    {
+        Deque<Value> pending = new ArrayDeque<>();
+        pending.push(value);
+
+        while (!pending.isEmpty()) {
+            Value cur = pending.pop();
+            if (cur instanceof Value.Symbol) return true;
+
+            Map<Variable, Value> fields = Collections.emptyMap();
+            if (cur instanceof Value.Compound)
+                fields = ((Value.Compound)(cur)).fields;
+            else if (cur instanceof Value.Type)
+                fields = ((Value.Type)(cur)).fields;
+
+            for (Value field : fields.values())
+                if (field != null) pending.push(field);
+        }
+
+        return false;
+    }
+
     private void resolveTypeSources(
         List<Pair<Variable, Rule>> raw,
         Map<Value.Type, List<Rule>> map
@@ -626,37 +847,205 @@ public class TypeSystem
     private void generateDependencies(Statement base)
     {
         Map<Statement, Boolean> generated = new IdentityHashMap<>();
-        base.dependencies = new ArrayList<>();
+        List<Rule.Slot> slots = new ArrayList<>();
+        List<Statement> insets = new ArrayList<>();
+        List<Statement> sources = new ArrayList<>();
+
+        // insets still shared with a copy of the statement get copied
+        // before generating them, leaving the copy's alone
+        for (Statement inset : base.insets.values())
+            if (inset != null && inset.generated == null) {
+                base.ownInsets();
+                break;
+            }
 
-        // generate inset slot statements first, as the inset
+        // collect inset slot statements first, as the inset
         // subtree itself isn't considered a dependency
-        for (Statement stmt : base.insets.values()) {
-            // no statement or already generated? nothing to do
+        for (Map.Entry<Rule.Slot, Statement> entry : base.insets.entrySet()) {
+            // no statement or already collected? nothing to do
+            Statement stmt = entry.getValue();
             if (stmt == null || generated.containsKey(stmt))
                 continue;
 
-            // generate the inset statement and mark it as such
-            generate(stmt);
             generated.put(stmt, true);
-
-            // add the inset statement's own dependencies to the base statement
-            base.dependencies.addAll(stmt.dependencies);
+            slots.add(entry.getKey());
+            insets.add(stmt);
         }
 
-        // generate regular variable dependencies (same as above)
+        // and regular variable dependencies (same as above)
         for (Source source : base.vars.values()) {
-            // no statement or already generated? nothing to do
+            // no statement or already collected? nothing to do
             if (source.stmt == null || generated.containsKey(source.stmt))
                 continue;
 
-            // generate the dependency and mark it as such
-            generate(source.stmt);
             generated.put(source.stmt, false);
+            sources.add(source.stmt);
+        }
+
+        // generate them all (except for cached inset copies, which come
+        // already generated, and pooled dependencies); they are independent
+        // from each other
+        List<Statement> pending = new ArrayList<>();
+        boolean[] fresh = new boolean[insets.size()];
+        boolean[] pooled = new boolean[sources.size()];
+
+        for (int i = 0; i < insets.size(); ++i)
+            if ((fresh[i] = (insets.get(i).generated == null)))
+                pending.add(insets.get(i));
+
+        for (int i = 0; i < sources.size(); ++i)
+            if (!(pooled[i] = reuse(sources.get(i))))
+                pending.add(sources.get(i));
+
+        generate(pending);
+
+        // with everything generated, put the dependencies together in order
+        base.dependencies = new ArrayList<>();
+        for (int i = 0; i < insets.size(); ++i) {
+            Rule.Slot slot = slots.get(i);
+            Statement stmt = insets.get(i);
+
+            // keep a copy before the inset's subtree gets merged into
+            // the base statement's own
+            if (insetCaching && fresh[i]) {
+                Value type = base.values.get(slot.var);
+                insetCache.putIfAbsent(
+                    new InsetKey(slot.type, type, stmt.rule), stmt.detach()
+                );
+            }
+
+            // add the inset statement's own dependencies to the base statement
+            base.dependencies.addAll(stmt.dependencies);
+        }
+
+        for (int i = 0; i < sources.size(); ++i) {
+            Statement stmt = sources.get(i);
+
+            // pool a copy of newly generated dependencies, as for insets
+            if (dependencyPooling && !pooled[i])
+                pool(stmt);
 
             // add the dependency itself and its own dependencies to the base statement
-            base.dependencies.addAll(source.stmt.dependencies);
-            base.dependencies.add(source.stmt.generated);
+            base.dependencies.addAll(stmt.dependencies);
+            base.dependencies.add(stmt.generated);
+        }
+    }
+
+    private boolean reuse(Statement stmt)
+    {
+        if (!dependencyPooling) return false;
+
+        Statement pooled = dependencyPool.get(new DependencyKey(stmt));
+        if (pooled == null) return false;
+
+        // take over (copies of) the pooled statement's subtrees,
+        // which leaves the statement as if it had been generated
+        stmt.generated = pooled.generated.share();
+        stmt.dependencies = new ArrayList<>();
+        for (Subtree subtree : pooled.dependencies)
+            stmt.dependencies.add(subtree.share());
+
+        return true;
+    }
+
+    private void generate(List<Statement> stmts)
+    {
+        // report the first error (in order), as generating sequentially would
+        for (RuntimeException error : tryGenerate(stmts, false))
+            if (error != null) throw error;
+    }
+
+    private RuntimeException[] tryGenerate(List<Statement> stmts, boolean all)
+    {
+        RuntimeException[] errors = new RuntimeException[stmts.size()];
+
+        // generate independent statements concurrently, unless parallelism
+        // is turned off (along with the grammar's) or there is no point to it
+        if (
+            grammar.parallelThreshold <= 0 || stmts.size() < 2 ||
+            ForkJoinPool.getCommonPoolParallelism() < 2
+        ) {
+            // stop at the first error, unless all statements are required
+            for (int i = 0; i < stmts.size(); ++i) {
+                try {
+                    generate(stmts.get(i));
+                } catch (RuntimeException e) {
+                    errors[i] = e;
+                    if (!all) break;
+                }
+            }
+
+            return errors;
         }
+
+        Generation generation = new Generation(stmts, 0, stmts.size(), errors);
+        if (ForkJoinTask.inForkJoinPool())
+            generation.invoke();
+        else
+            ForkJoinPool.commonPool().invoke(generation);
+
+        return errors;
+    }
+
+    private void pool(Statement stmt)
+    {
+        // pool a copy of a newly generated statement (see dependencyPooling);
+        // its subtrees are about to be handed out, so leave them alone
+        dependencyPool.putIfAbsent(new DependencyKey(stmt), stmt.detach());
+    }
+
+    private Source cheapestSource(Statement stmt, List<Source> sources)
+    {
+        Source cheapest = null;
+        int best = Integer.MAX_VALUE;
+
+        // values (and variables outside of any rule) end the nesting right
+        // away; otherwise, go for the non-recursive rule with the least slots
+        for (Source source : sources) {
+            if (!(source instanceof Source.Variable)) return source;
+
+            Rule rule = ((Source.Variable)(source)).var.rule;
+            if (rule == null) return source;
+            if (graph().isRecursive(rule)) continue;
+
+            if (rule.slots.size() < best) {
+                best = rule.slots.size();
+                cheapest = source;
+            }
+        }
+
+        if (cheapest == null)
+            throw new RuntimeException(
+                "Maximum depth (" + maxDepth + ") reached with only recursive " +
+                "sources left in " + stmt
+            );
+
+        return cheapest;
+    }
+
+    private Rule cheapestRule(List<Rule> sources)
+    {
+        Rule cheapest = null;
+        int bestNested = Integer.MAX_VALUE, bestSlots = Integer.MAX_VALUE;
+
+        // insets nest through their own type slots;
+        // go for the rule with the least of those, then the least slots
+        for (Rule rule : sources) {
+            int nested = 0;
+            for (Rule.Slot slot : rule.slots)
+                if (slot.type != Rule.Slot.Type.SYMBOL) ++nested;
+
+            if (
+                nested < bestNested ||
+                (nested == bestNested && rule.slots.size() < bestSlots)
+            ) {
+                bestNested = nested;
+                bestSlots = rule.slots.size();
+                cheapest = rule;
+            }
+        }
+
+        return cheapest;
     }
 
     private Statement createInset(Statement stmt, Rule.Slot slot, SourceSelector selector)
@@ -682,9 +1071,13 @@ public class TypeSystem
                 );
 
             // select the source rule, using the selector if required
-            rule = (sources.size() > 1)
-                ? selector.selectTypedValueSource(stmt, type, sources)
-                : sources.get(0);
+            // (or the cheapest one, once deep enough)
+            if (stmt.depth >= maxDepth)
+                rule = cheapestRule(sources);
+            else if (sources.size() > 1)
+                rule = selector.selectTypedValueSource(stmt, type, sources);
+            else
+                rule = sources.get(0);
 
         // or for a type literal slot (same as above with different sources)
         } else {
@@ -696,9 +1089,25 @@ public class TypeSystem
                 );
 
             // select the source rule, using the selector if required
-            rule = (sources.size() > 1)
-                ? selector.selectTypeLiteralSource(stmt, type, sources)
-                : sources.get(0);
+            // (or the cheapest one, once deep enough)
+            if (stmt.depth >= maxDepth)
+                rule = cheapestRule(sources);
+            else if (sources.size() > 1)
+                rule = selector.selectTypeLiteralSource(stmt, type, sources);
+            else
+                rule = sources.get(0);
+        }
+
+        // reuse a copy of an identical inset if one was already generated
+        if (insetCaching) {
+            Statement cached = insetCache.get(new InsetKey(slot.type, type, rule));
+            if (cached != null) {
+                Statement inset = cached.clone();
+                inset.parent = stmt;
+                inset.depth = stmt.depth + 1;
+
+                return inset;
+            }
         }
 
         // with the rule selected, create & bind a statement (template) for it
@@ -709,11 +1118,6 @@ public class TypeSystem
         return inset;
     }
 
-    private interface Predicate<T>
-    {
-        boolean apply(T value);
-    }
-
     private static class Pair<L, R>
     {
         public L left;
@@ -756,14 +1160,121 @@ public class TypeSystem
         }
     }
 
-    private static <T> List<T> filter(List<T> list, Predicate<T> predicate)
+    private class Generation extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final List<Statement> stmts;
+        private final int from, to;
+
+        // errors are kept rather than thrown, so that they reach the caller
+        // as they are (instead of wrapped by the fork-join framework)
+        public final RuntimeException[] errors;
+
+        public Generation(List<Statement> stmts, int from, int to, RuntimeException[] errors)
+        {
+            this.stmts = stmts;
+            this.from = from;
+            this.to = to;
+            this.errors = errors;
+        }
+
+        public void compute()
+        {
+            // a single statement; generate it directly
+            if (to - from == 1) {
+                try {
+                    generate(stmts.get(from));
+                } catch (RuntimeException e) {
+                    errors[from] = e;
+                }
+
+                return;
+            }
+
+            // otherwise split the range in two
+            int mid = (from + to) >>> 1;
+            invokeAll(
+                new Generation(stmts, from, mid, errors),
+                new Generation(stmts, mid, to, errors)
+            );
+        }
+    }
+
+    private static class DependencyKey
     {
-        List<T> result = new ArrayList<>();
+        public final Rule rule;
+        public final Map<Variable, Value> values;
+        private final int hash;
 
-        for (T item : list)
-            if (predicate.apply(item))
-                result.add(item);
+        public DependencyKey(Statement stmt)
+        {
+            // keep a snapshot of the values, so that binding more of them in
+            // the statement later on cannot change the key (or its hash)
+            this.rule = stmt.rule;
+            this.values = Collections.unmodifiableMap(Bindings.copy(stmt.values));
+
+            // rules are compared by identity
+            this.hash = (
+                7 * System.identityHashCode(rule) +
+                11 * values.hashCode()
+            );
+        }
 
-        return result;
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        public boolean equals(Object other)
+        {
+            if (other == null || !getClass().equals(other.getClass()))
+                return false;
+
+            DependencyKey that = (DependencyKey)(other);
+            return (
+                rule == that.rule &&
+                hash == that.hash &&
+                values.equals(that.values)
+            );
+        }
+    }
+
+    private static class InsetKey
+    {
+        public final Rule.Slot.Type slot;
+        public final Value type;
+        public final Rule rule;
+
+        public InsetKey(Rule.Slot.Type slot, Value type, Rule rule)
+        {
+            this.slot = slot;
+            this.type = type;
+            this.rule = rule;
+        }
+
+        // type values and rules are compared by identity
+        // (as in valueSources and literalSources)
+        public int hashCode()
+        {
+            return (
+                7 * slot.hashCode() +
+                11 * System.identityHashCode(type) +
+                13 * System.identityHashCode(rule)
+            );
+        }
+
+        public boolean equals(Object other)
+        {
+            if (other == null || !getClass().equals(other.getClass()))
+                return false;
+
+            InsetKey that = (InsetKey)(other);
+            return (
+                slot == that.slot &&
+                type == that.type &&
+                rule == that.rule
+            );
+        }
     }
 }
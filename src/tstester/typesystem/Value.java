@@ -7,6 +7,18 @@ public abstract class Value implements Comparable<Value>
 {
     public final String name;
 
+    // values frozen along with the variable graph (see TypeSystem.freeze)
+    // cannot change anymore, so they keep their hash and sorted field keys;
+    // a 0 hash means it isn't known (yet)
+    public transient boolean frozen;
+    protected transient int hash;
+    private transient List<Variable> keys;
+
+    // frozen values (other than symbols, whose node changes) also get a
+    // canonical id from their type system, as variables do; 0 means none
+    transient int id;
+    transient TypeSystem numbering;
+
     public static int unnamed = 0;
 
     public static class Basic extends Value
@@ -53,10 +65,14 @@ public abstract class Value implements Comparable<Value>
 
         public int hashCode()
         {
-            return (
-                7 * super.hashCode() +
-                11 * value.hashCode()
-            );
+            // basic values never change, so the hash can always be kept
+            if (hash == 0)
+                hash = (
+                    7 * super.hashCode() +
+                    11 * value.hashCode()
+                );
+
+            return hash;
         }
 
         public boolean equals(Object other)
@@ -103,8 +119,12 @@ public abstract class Value implements Comparable<Value>
             if (c != 0) return c;
 
             Compound that = (Compound)(other);
+            if (numbered(that) && id == that.id) return 0;
 
-            return compareFields(fields, that.fields);
+            return compareFields(
+                sortedKeys(fields), fields,
+                that.sortedKeys(that.fields), that.fields
+            );
         }
 
         public String toString()
@@ -119,10 +139,15 @@ public abstract class Value implements Comparable<Value>
 
         public int hashCode()
         {
-            return (
+            if (hash != 0) return hash;
+
+            int h = (
                 7 * super.hashCode() +
                 11 * fields.hashCode()
             );
+
+            if (frozen) hash = h;
+            return h;
         }
 
         public boolean equals(Object other)
@@ -131,6 +156,11 @@ public abstract class Value implements Comparable<Value>
                 return false;
 
             Compound that = (Compound)(other);
+            if (numbered(that)) return id == that.id;
+
+            if (hash != 0 && that.hash != 0 && hash != that.hash)
+                return false;
+
             return (
                 name.equals(that.name) &&
                 fields.equals(that.fields)
@@ -141,7 +171,7 @@ public abstract class Value implements Comparable<Value>
     public static class Symbol extends Value
     {
         public final tstester.grammar.Symbol sym;
-        public Node node;
+        public volatile Node node;
 
         public Symbol(tstester.grammar.Symbol sym)
         {
@@ -185,11 +215,15 @@ public abstract class Value implements Comparable<Value>
 
         public int hashCode()
         {
-            return (
-                7 * super.hashCode() +
-                11 * sym.hashCode() +
-                13 * (node == null ? 0 : node.hashCode())
-            );
+            // the node is left out, as it is generated (and hence changes)
+            // after the value is used as a key; this keeps the hash fixed
+            if (hash == 0)
+                hash = (
+                    7 * super.hashCode() +
+                    11 * sym.hashCode()
+                );
+
+            return hash;
         }
 
         public boolean equals(Object other)
@@ -246,10 +280,14 @@ public abstract class Value implements Comparable<Value>
             if (c != 0) return c;
 
             Type that = (Type)(other);
+            if (numbered(that) && id == that.id) return 0;
 
             if (basic != that.basic) return basic ? 1 : -1;
 
-            return compareFields(fields, that.fields);
+            return compareFields(
+                sortedKeys(fields), fields,
+                that.sortedKeys(that.fields), that.fields
+            );
         }
 
         public String toString()
@@ -266,11 +304,16 @@ public abstract class Value implements Comparable<Value>
 
         public int hashCode()
         {
-            return (
+            if (hash != 0) return hash;
+
+            int h = (
                 7 * super.hashCode() +
                 11 * fields.hashCode() +
                 13 * (basic ? 1 : 0)
             );
+
+            if (frozen) hash = h;
+            return h;
         }
 
         public boolean equals(Object other)
@@ -279,6 +322,11 @@ public abstract class Value implements Comparable<Value>
                 return false;
 
             Type that = (Type)(other);
+            if (numbered(that)) return id == that.id;
+
+            if (hash != 0 && that.hash != 0 && hash != that.hash)
+                return false;
+
             return (
                 name.equals(that.name) &&
                 fields.equals(that.fields) &&
@@ -290,6 +338,8 @@ public abstract class Value implements Comparable<Value>
     public Value(String name)
     {
         this.name = (name == null ? "@" + unnamed++ : name);
+        this.id = 0;
+        this.numbering = null;
     }
 
     public Value(Value other)
@@ -326,16 +376,30 @@ public abstract class Value implements Comparable<Value>
         return name.equals(that.name);
     }
 
-    protected static int compareFields(Map<Variable, Value> a, Map<Variable, Value> b)
+    protected boolean numbered(Value that)
     {
-        int c = a.size() - b.size();
-        if (c != 0) return c;
+        // values numbered by the same type system compare by id only
+        return id != 0 && that.id != 0 && numbering == that.numbering;
+    }
+
+    protected List<Variable> sortedKeys(Map<Variable, Value> fields)
+    {
+        if (keys != null) return keys;
+
+        List<Variable> sorted = new ArrayList<>(fields.keySet());
+        Collections.sort(sorted);
 
-        List<Variable> aKeys = new ArrayList<>(a.keySet());
-        Collections.sort(aKeys);
+        if (frozen) keys = sorted;
+        return sorted;
+    }
 
-        List<Variable> bKeys = new ArrayList<>(b.keySet());
-        Collections.sort(bKeys);
+    protected static int compareFields(
+        List<Variable> aKeys, Map<Variable, Value> a,
+        List<Variable> bKeys, Map<Variable, Value> b
+    )
+    {
+        int c = a.size() - b.size();
+        if (c != 0) return c;
 
         for (int i = 0; i < aKeys.size(); ++i) {
             Variable aKey = aKeys.get(i), bKey = bKeys.get(i);
@@ -13,6 +13,23 @@ public class Variable implements Comparable<Variable>
     public transient Variable parent;
     public transient Rule rule;
 
+    // set once the variable graph is complete (see TypeSystem.freeze); a
+    // frozen variable cannot change anymore, which makes it safe to keep its
+    // key (in its parent) and its statement-less lookup results around
+    public transient boolean frozen;
+    transient Variable key;
+    transient List<Source> expanded, found;
+
+    // dense index of the variable within its rule (see Rule.index)
+    transient int local;
+
+    // frozen variables also keep their hash, and get a canonical id from
+    // their type system (see TypeSystem.freeze), shared by all of the
+    // variables equal to them; 0 means none
+    private transient int hash;
+    transient int id;
+    transient TypeSystem numbering;
+
     public static MatchComparator matcher = new MatchComparator();
     public static int unnamed = 0;
 
@@ -104,6 +121,10 @@ public class Variable implements Comparable<Variable>
 
         this.parent = null;
         this.rule = null;
+        this.frozen = false;
+        this.local = -1;
+        this.id = 0;
+        this.numbering = null;
     }
 
     public Variable(Variable other)
@@ -122,6 +143,10 @@ public class Variable implements Comparable<Variable>
 
         this.parent = other.parent;
         this.rule = other.rule;
+        this.frozen = false;
+        this.local = -1;
+        this.id = 0;
+        this.numbering = null;
     }
 
     public Variable get(String key)
@@ -174,8 +199,20 @@ public class Variable implements Comparable<Variable>
         put(new Variable(key, new Value.Basic(key)), value);
     }
 
+    public Variable key()
+    {
+        if (frozen) return key;
+
+        return (parent == null) ? null : parent.getKey(this);
+    }
+
     public void put(Variable key, Variable value)
     {
+        if (frozen)
+            throw new RuntimeException(
+                "Cannot modify frozen variable " + this
+            );
+
         fields.put(key, value);
 
         key.parent = this;
@@ -193,6 +230,12 @@ public class Variable implements Comparable<Variable>
     public Variable remove(Variable key)
     {
         if (key == null) return null;
+
+        if (frozen)
+            throw new RuntimeException(
+                "Cannot modify frozen variable " + this
+            );
+
         key.parent = null;
 
         if (key.name != null && key == fixed.get(key.name))
@@ -206,10 +249,18 @@ public class Variable implements Comparable<Variable>
         return value;
     }
 
+    public int id()
+    {
+        return id;
+    }
+
     public int compareTo(Variable other)
     {
         int c;
 
+        if (this == other) return 0;
+        if (id != 0 && id == other.id && numbering == other.numbering) return 0;
+
         if (name == null || other.name == null) {
             if (name != other.name)
                 return name == null ? 1 : -1;
@@ -233,19 +284,28 @@ public class Variable implements Comparable<Variable>
 
     public int hashCode()
     {
-        return (
+        if (hash != 0) return hash;
+
+        int h = (
             7 * (name != null ? name.hashCode() : 0) +
             11 * sources.hashCode() +
             13 * fields.hashCode()
         );
+
+        if (frozen) hash = h;
+        return h;
     }
 
     public boolean equals(Object other)
     {
-        return (
-            other != null &&
-            getClass().equals(other.getClass()) &&
-            compareTo((Variable)(other)) == 0
-        );
+        if (other == null || !getClass().equals(other.getClass()))
+            return false;
+
+        // variables numbered by the same type system compare by id only
+        Variable that = (Variable)(other);
+        if (id != 0 && that.id != 0 && numbering == that.numbering)
+            return id == that.id;
+
+        return compareTo(that) == 0;
     }
 }